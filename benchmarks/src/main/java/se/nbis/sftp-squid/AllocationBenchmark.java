@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the copiers allocate, without any SFTP in the way: one operation
+ * copies an in-memory stream to outputs that throw the bytes away.
+ *
+ * <p>Run it with the GC profiler and compare gc.alloc.rate.norm, the bytes
+ * allocated per operation:
+ *
+ * <pre>
+ *   $ java -jar target/benchmarks.jar AllocationBenchmark -prof gc
+ * </pre>
+ *
+ * <p>With pooled buffers a copy allocates a little per file for the queues
+ * and threads, and nothing per buffer except the node the JDK's blocking
+ * queues make when a thread has to wait for the other, a few tens of bytes.
+ * Without the pool every file also allocates a new ring, 256K with the
+ * default ring of 8 buffers of 32K.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AllocationBenchmark {
+  @Param({"32768"})
+  public int bufSize;
+
+  @Param({"65536", "16777216"})
+  public int fileSize;
+
+  /** Take the rings from a pool, or allocate them for every copy */
+  @Param({"true", "false"})
+  public boolean pooled;
+
+  private BufferPool pool;
+  private RepeatingInputStream in;
+  private List<OutputStream> outs;
+
+  /**
+   * Gives the same bytes over and over, without allocating
+   */
+  static class RepeatingInputStream extends InputStream {
+    private byte[] data;
+    private long left;
+
+    RepeatingInputStream(byte[] data) {
+      this.data = data;
+    }
+
+    void reset(long length) {
+      left = length;
+    }
+
+    public int read() {
+      if (left == 0) {
+        return -1;
+      }
+      left--;
+      return data[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (left == 0) {
+        return -1;
+      }
+      int n = (int) Math.min(Math.min(len, data.length), left);
+      System.arraycopy(data, 0, b, off, n);
+      left -= n;
+      return n;
+    }
+  }
+
+  /**
+   * Throws everything away
+   */
+  static class Sink extends OutputStream {
+    public void write(int b) {
+    }
+
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    pool = new BufferPool(pooled ? BufferPool.DEFAULT_MAX_BYTES : 0);
+    byte[] data = new byte[bufSize];
+    new Random(42).nextBytes(data);
+    in = new RepeatingInputStream(data);
+    outs = Arrays.<OutputStream>asList(new Sink(), new Sink());
+  }
+
+  /**
+   * The reader and writer threads of SftpSquid.copyRange()
+   */
+  @Benchmark
+  public long pipelined() throws IOException {
+    in.reset(fileSize);
+    return new PipelinedCopier(in, outs.get(0))
+      .bufSize(bufSize)
+      .bufferPool(pool)
+      .copy();
+  }
+
+  /**
+   * One source to two destinations, as in SftpSquid.fanOut()
+   */
+  @Benchmark
+  public List<Integer> fanOut() throws IOException {
+    in.reset(fileSize);
+    return new FanOutCopier(in, outs)
+      .bufSize(bufSize)
+      .bufferPool(pool)
+      .copy();
+  }
+}
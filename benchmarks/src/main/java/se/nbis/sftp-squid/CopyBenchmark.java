@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy path of SftpSquid.transferFile() between two SFTP servers on
+ * loopback, one operation copies all files once.
+ *
+ * <p>Loopback has next to no latency, so this shows the CPU and buffering
+ * cost of the copy engine rather than what the windows gain on a real
+ * network. Run it before and after a change to the copy path:
+ *
+ * <pre>
+ *   $ java -jar target/benchmarks.jar CopyBenchmark -p fileSize=1048576
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+  /** Bytes per read and write, limited to what fits in one packet */
+  @Param({"8192", "16384", "32768"})
+  public int bufSize;
+
+  /** Outstanding reads and writes per file */
+  @Param({"1", "16", "64"})
+  public int readAhead;
+
+  @Param({"4096", "1048576", "16777216"})
+  public int fileSize;
+
+  @Param({"1", "16"})
+  public int fileCount;
+
+  private LoopbackSftpServer sourceServer;
+  private LoopbackSftpServer destinationServer;
+  private SSHClient sourceSsh;
+  private SSHClient destinationSsh;
+  private SFTPClient src;
+  private SFTPClient dst;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    sourceServer      = new LoopbackSftpServer();
+    destinationServer = new LoopbackSftpServer();
+
+    byte[] data = new byte[fileSize];
+    new Random(42).nextBytes(data);
+    for (int i=0; i<fileCount; i++) {
+      Files.write(sourceServer.getRoot().resolve(fileName(i)), data);
+    }
+
+    sourceSsh      = sourceServer.connect();
+    destinationSsh = destinationServer.connect();
+    src = sourceSsh.newSFTPClient();
+    dst = destinationSsh.newSFTPClient();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    src.close();
+    dst.close();
+    sourceSsh.close();
+    destinationSsh.close();
+    sourceServer.stop();
+    destinationServer.stop();
+  }
+
+  private static String fileName(int i) {
+    return "file-" + i;
+  }
+
+  /**
+   * Largest buffer that fits in one packet to both servers, as
+   * SftpSquid.calculateMaxBufferSize()
+   */
+  private int maxBufferSize(RemoteFile destination) {
+    int packet = Math.min(src.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize(),
+        dst.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize());
+    return packet - destination.getOutgoingPacketOverhead();
+  }
+
+  /**
+   * Separate reader and writer threads, as in SftpSquid.copyRange()
+   */
+  @Benchmark
+  public long pipelined() throws IOException {
+    long total = 0;
+    for (int i=0; i<fileCount; i++) {
+      RemoteFile fileSource = src.open(fileName(i));
+      RemoteFile fileDestination = dst.open(fileName(i),
+          EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+      try {
+        InputStream in = fileSource.new ReadAheadRemoteFileInputStream(readAhead);
+        OutputStream out = fileDestination.new RemoteFileOutputStream(0, readAhead);
+        try {
+          total += new PipelinedCopier(in, out)
+            .bufSize(Math.min(bufSize, maxBufferSize(fileDestination)))
+            .copy();
+        } finally {
+          in.close();
+          out.close();
+        }
+      } finally {
+        fileDestination.close();
+        fileSource.close();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * One read and one write per file, as SftpSquid.copySmall() does for
+   * files that fit in one packet. Larger files are read in a loop, so this
+   * is also the no read ahead baseline.
+   */
+  @Benchmark
+  public long singleThreaded() throws IOException {
+    long total = 0;
+    for (int i=0; i<fileCount; i++) {
+      RemoteFile fileSource = src.open(fileName(i));
+      RemoteFile fileDestination = dst.open(fileName(i),
+          EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+      try {
+        byte[] buf = new byte[Math.min(bufSize, maxBufferSize(fileDestination))];
+        long offset = 0;
+        int r;
+        while ((r = fileSource.read(offset, buf, 0, buf.length)) != -1) {
+          fileDestination.write(offset, buf, 0, r);
+          offset += r;
+        }
+        total += offset;
+      } finally {
+        fileDestination.close();
+        fileSource.close();
+      }
+    }
+    return total;
+  }
+}
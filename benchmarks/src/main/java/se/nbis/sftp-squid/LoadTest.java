@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Runs the whole of SftpSquid.run() between two local SFTP servers, each
+ * behind a WanProxy, and reports the makespan and throughput.
+ *
+ * <p>Usage:
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar se.nbis.sftpsquid.LoadTest [harness options] [-- sftpsquid options]
+ * </pre>
+ *
+ * <p>Harness options:
+ *
+ * <pre>
+ *   --workload huge|small|tree|all   what to transfer (default all)
+ *   --delay MS                       one way delay per proxy (default 50)
+ *   --jitter MS                      random extra delay (default 0)
+ *   --bandwidth RATE                 bytes per second per direction, e.g. 100M
+ *   --stall-probability P            chance that a chunk is stalled (default 0)
+ *   --stall MS                       length of a stall (default 200)
+ *   --huge-size SIZE                 size of the huge file (default 1G)
+ *   --repeat N                       runs per workload (default 1)
+ *   --report FILE                    append the results to FILE as CSV
+ * </pre>
+ *
+ * <p>Everything after -- is given to sftpsquid, e.g. "-- --parallel 8".
+ */
+public class LoadTest {
+  /** The standard workloads */
+  enum Workload {
+    /** One large file, bandwidth and window bound */
+    HUGE,
+    /** Many small files in one directory, round trip bound */
+    SMALL,
+    /** A deep tree of small directories, listing bound */
+    TREE
+  }
+
+  private WanProxy.Link link = new WanProxy.Link();
+  private List<Workload> workloads = new ArrayList<Workload>(Arrays.asList(Workload.values()));
+  private long hugeSize = 1L << 30;
+  private int repeat = 1;
+  private String report;
+  private List<String> squidArgs = new ArrayList<String>();
+
+  public static void main(String[] args) throws IOException {
+    LoadTest test = new LoadTest();
+    test.parseArgs(args);
+    test.run();
+  }
+
+  private void parseArgs(String[] args) throws IOException {
+    link.delayMs = 50;
+    for (int i=0; i<args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--")) {
+        squidArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      }
+      if (i + 1 >= args.length) {
+        throw new IOException("Option " + arg + " needs a value");
+      }
+      String value = args[++i];
+      if (arg.equals("--workload")) {
+        workloads.clear();
+        if (value.equals("all")) {
+          workloads.addAll(Arrays.asList(Workload.values()));
+        } else {
+          workloads.add(Workload.valueOf(value.toUpperCase()));
+        }
+      } else if (arg.equals("--delay")) {
+        link.delayMs = Integer.parseInt(value);
+      } else if (arg.equals("--jitter")) {
+        link.jitterMs = Integer.parseInt(value);
+      } else if (arg.equals("--bandwidth")) {
+        link.bandwidth = Options.parseSize(value);
+      } else if (arg.equals("--stall-probability")) {
+        link.stallProbability = Double.parseDouble(value);
+      } else if (arg.equals("--stall")) {
+        link.stallMs = Integer.parseInt(value);
+      } else if (arg.equals("--huge-size")) {
+        hugeSize = Options.parseSize(value);
+      } else if (arg.equals("--repeat")) {
+        repeat = Integer.parseInt(value);
+      } else if (arg.equals("--report")) {
+        report = value;
+      } else {
+        throw new IOException("Unknown option '" + arg + "'");
+      }
+    }
+  }
+
+  private void run() throws IOException {
+    System.out.println("Link: " + link);
+    System.out.println("sftpsquid options: " + String.join(" ", squidArgs));
+    for (Workload workload : workloads) {
+      for (int r=0; r<repeat; r++) {
+        runOnce(workload);
+      }
+    }
+  }
+
+  private void runOnce(Workload workload) throws IOException {
+    LoopbackSftpServer source = new LoopbackSftpServer();
+    LoopbackSftpServer destination = new LoopbackSftpServer();
+    WanProxy sourceProxy = new WanProxy(source.getPort(), link);
+    WanProxy destinationProxy = new WanProxy(destination.getPort(), link);
+    try {
+      long[] size = create(workload, source.getRoot());
+
+      List<String> args = new ArrayList<String>(squidArgs);
+      args.add(LoopbackSftpServer.USER + "@127.0.0.1:" + sourceProxy.getPort() + ":workload");
+      args.add(LoopbackSftpServer.USER + "@127.0.0.1:" + destinationProxy.getPort() + ":");
+      Options opts = new Options(args.toArray(new String[args.size()]));
+      HostFileInfo[] hfs = SftpSquid.parseArgs(opts.hosts.toArray(new String[opts.hosts.size()]));
+      // The servers take any password, set it so nothing is asked on the console
+      for (HostFileInfo hf : hfs) {
+        hf.password = LoopbackSftpServer.PASSWORD.toCharArray();
+      }
+
+      long start = System.nanoTime();
+      new SftpSquid(hfs, opts).run();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      // The contents of the directory are copied, not the directory itself
+      long copied = countBytes(destination.getRoot());
+      if (copied != size[1]) {
+        throw new IOException("Copied " + copied + " bytes, expected " + size[1]);
+      }
+      report(workload, size[0], size[1], seconds);
+    } finally {
+      sourceProxy.stop();
+      destinationProxy.stop();
+      source.stop();
+      destination.stop();
+    }
+  }
+
+  /**
+   * Create the files of a workload in a directory named workload
+   *
+   * @return the number of files and bytes
+   */
+  private long[] create(Workload workload, Path root) throws IOException {
+    Path dir = Files.createDirectory(root.resolve("workload"));
+    Random random = new Random(42);
+    switch (workload) {
+      case HUGE:
+        writeRandom(dir.resolve("huge.bin"), hugeSize, random);
+        return new long[] {1, hugeSize};
+      case SMALL:
+        for (int i=0; i<10000; i++) {
+          writeRandom(dir.resolve("small-" + i), 4096, random);
+        }
+        return new long[] {10000, 10000 * 4096L};
+      default:
+        long files = createTree(dir, 6, random);
+        return new long[] {files, files * 16384};
+    }
+  }
+
+  /**
+   * A tree with three subdirectories and eight 16K files per directory
+   *
+   * @return the number of files
+   */
+  private long createTree(Path dir, int depth, Random random) throws IOException {
+    long files = 0;
+    for (int i=0; i<8; i++) {
+      writeRandom(dir.resolve("file-" + i), 16384, random);
+      files++;
+    }
+    if (depth > 1) {
+      for (int i=0; i<3; i++) {
+        files += createTree(Files.createDirectory(dir.resolve("dir-" + i)), depth - 1, random);
+      }
+    }
+    return files;
+  }
+
+  private static void writeRandom(Path file, long size, Random random) throws IOException {
+    byte[] buf = new byte[(int) Math.min(size, 1 << 20)];
+    try (OutputStream out = Files.newOutputStream(file)) {
+      long left = size;
+      while (left > 0) {
+        random.nextBytes(buf);
+        int n = (int) Math.min(left, buf.length);
+        out.write(buf, 0, n);
+        left -= n;
+      }
+    }
+  }
+
+  private static long countBytes(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+    }
+  }
+
+  private void report(Workload workload, long files, long bytes, double seconds) throws IOException {
+    String line = String.format("%s: %d files, %d bytes in %.2fs, %.2f MB/s, %.1f files/s",
+        workload.name().toLowerCase(), files, bytes, seconds, bytes / seconds / 1e6, files / seconds);
+    System.out.println(line);
+    if (report != null) {
+      boolean header = !Files.exists(Paths.get(report));
+      try (PrintWriter out = new PrintWriter(new FileWriter(report, true))) {
+        if (header) {
+          out.println("workload,files,bytes,seconds,delay_ms,jitter_ms,bandwidth,stall_probability,stall_ms,options");
+        }
+        out.printf(Locale.ROOT, "%s,%d,%d,%.3f,%d,%d,%d,%f,%d,\"%s\"%n",
+            workload.name().toLowerCase(), files, bytes, seconds, link.delayMs, link.jitterMs,
+            link.bandwidth, link.stallProbability, link.stallMs, String.join(" ", squidArgs));
+      }
+    }
+  }
+}
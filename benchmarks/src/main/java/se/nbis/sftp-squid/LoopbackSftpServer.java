@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.keyboard.InteractiveChallenge;
+import org.apache.sshd.server.auth.keyboard.KeyboardInteractiveAuthenticator;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An SFTP server on the loopback interface that serves a temporary
+ * directory, any user name and password is accepted.
+ *
+ * <p>Keyboard interactive authentication succeeds without any prompts, so
+ * SftpSquid.run() can log in without asking on the console.
+ */
+class LoopbackSftpServer {
+  static final String USER = "bench";
+  static final String PASSWORD = "bench";
+
+  private SshServer sshd;
+  private Path root;
+
+  /**
+   * Start a server on a free port
+   */
+  LoopbackSftpServer() throws IOException {
+    root = Files.createTempDirectory("sftpsquid-bench");
+    sshd = SshServer.setUpDefaultServer();
+    sshd.setHost("127.0.0.1");
+    sshd.setPort(0);
+    sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+    sshd.setPasswordAuthenticator((user, password, session) -> true);
+    sshd.setKeyboardInteractiveAuthenticator(new KeyboardInteractiveAuthenticator() {
+      public InteractiveChallenge generateChallenge(ServerSession session, String username,
+          String lang, String subMethods) {
+        return new InteractiveChallenge();
+      }
+
+      public boolean authenticate(ServerSession session, String username, List<String> responses) {
+        return true;
+      }
+    });
+    sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+    sshd.setFileSystemFactory(new VirtualFileSystemFactory(root));
+    sshd.start();
+  }
+
+  public int getPort() {
+    return sshd.getPort();
+  }
+
+  /**
+   * The directory that is served, SFTP paths are relative to it
+   */
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Connect with sshj, the way sftpsquid does
+   */
+  public SSHClient connect() throws IOException {
+    SSHClient ssh = new SSHClient();
+    ssh.addHostKeyVerifier(new PromiscuousVerifier());
+    ssh.connect("127.0.0.1", getPort());
+    ssh.authPassword(USER, PASSWORD);
+    return ssh;
+  }
+
+  /**
+   * Stop the server and remove the directory
+   */
+  public void stop() throws IOException {
+    sshd.stop(true);
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A TCP proxy on loopback that makes a connection behave like a wide area
+ * network link.
+ *
+ * <p>Everything is delayed by a fixed one way delay plus a random jitter,
+ * without reordering. The bandwidth of each direction is shared by all
+ * connections through the proxy, as on one physical link. Stalls hold back
+ * a direction for a while, like a lost packet that has to be resent.
+ */
+class WanProxy {
+  /** The link properties, all zero is a plain proxy */
+  static class Link {
+    /** One way delay in milliseconds */
+    int delayMs = 0;
+    /** Extra random delay in milliseconds, up to this much */
+    int jitterMs = 0;
+    /** Bytes per second in each direction, 0 for no limit */
+    long bandwidth = 0;
+    /** Chance that a read chunk is held back by a stall */
+    double stallProbability = 0;
+    /** How long a stall lasts, in milliseconds */
+    int stallMs = 200;
+
+    public String toString() {
+      return String.format("delay %dms, jitter %dms, bandwidth %s, stalls %.4f x %dms",
+          delayMs, jitterMs, bandwidth == 0 ? "unlimited" : bandwidth + " bytes/s",
+          stallProbability, stallMs);
+    }
+  }
+
+  /** One piece of data on its way through the link */
+  private static class Packet {
+    byte[] data;
+    long releaseNanos;
+
+    Packet(byte[] data, long releaseNanos) {
+      this.data = data;
+      this.releaseNanos = releaseNanos;
+    }
+  }
+
+  /** Tells the sending side that the connection is closed */
+  private static final Packet EOF = new Packet(new byte[0], 0);
+
+  private Link link;
+  private int targetPort;
+  private ServerSocket server;
+  private RateLimiter upstream;
+  private RateLimiter downstream;
+  private Random random = new Random(42);
+
+  /**
+   * Start a proxy on a free port
+   *
+   * @param targetPort the loopback port to forward to
+   */
+  WanProxy(int targetPort, Link link) throws IOException {
+    this.link       = link;
+    this.targetPort = targetPort;
+    this.upstream   = new RateLimiter(link.bandwidth);
+    this.downstream = new RateLimiter(link.bandwidth);
+    this.server     = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread t = new Thread(this::accept, "wanproxy-accept");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  public void stop() throws IOException {
+    server.close();
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        Socket client = server.accept();
+        Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+        client.setTcpNoDelay(true);
+        target.setTcpNoDelay(true);
+        pipe(client, target, upstream);
+        pipe(target, client, downstream);
+      }
+    } catch (IOException e) {
+      // Stopped
+    }
+  }
+
+  /**
+   * Move data in one direction, a reader thread stamps each chunk with the
+   * time it may leave and a sender thread holds it until then
+   */
+  private void pipe(final Socket from, final Socket to, final RateLimiter limiter) {
+    final BlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>();
+
+    Thread reader = new Thread(() -> {
+      long lastRelease = 0;
+      try {
+        InputStream in = from.getInputStream();
+        byte[] buf = new byte[16384];
+        int r;
+        while ((r = in.read(buf)) != -1) {
+          long release = System.nanoTime() + link.delayMs * 1000000L;
+          if (link.jitterMs > 0) {
+            release += (long) (nextDouble() * link.jitterMs * 1000000L);
+          }
+          if (link.stallProbability > 0 && nextDouble() < link.stallProbability) {
+            release += link.stallMs * 1000000L;
+          }
+          // Jitter does not reorder, TCP would hide that anyway
+          release = Math.max(release, lastRelease);
+          lastRelease = release;
+          queue.add(new Packet(Arrays.copyOf(buf, r), release));
+        }
+      } catch (IOException e) {
+        // Closed
+      }
+      queue.add(EOF);
+    }, "wanproxy-read");
+
+    Thread sender = new Thread(() -> {
+      try {
+        OutputStream out = to.getOutputStream();
+        while (true) {
+          Packet p = queue.take();
+          if (p == EOF) {
+            break;
+          }
+          long wait = p.releaseNanos - System.nanoTime();
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+          limiter.acquire(p.data.length);
+          out.write(p.data);
+        }
+        to.shutdownOutput();
+      } catch (IOException | InterruptedException e) {
+        closeQuietly(from);
+        closeQuietly(to);
+      }
+    }, "wanproxy-send");
+
+    reader.setDaemon(true);
+    sender.setDaemon(true);
+    reader.start();
+    sender.start();
+  }
+
+  private synchronized double nextDouble() {
+    return random.nextDouble();
+  }
+
+  private static void closeQuietly(Socket s) {
+    try {
+      s.close();
+    } catch (IOException e) {
+      // Nothing to do
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bandwidth limits for a transfer, one global limit on what is read from the
+ * source and one limit per host, see RateLimiter.
+ *
+ * <p>A host limit applies to everything read from or written to that host,
+ * by all workers together. The limits can be changed while the transfer runs
+ * by editing the control file given with --limit-file, it is checked once a
+ * second. Each line in it is "global" or a host name followed by a rate:
+ *
+ * <pre>
+ *   global 50M
+ *   backup.example.org 10M
+ * </pre>
+ *
+ * <p>Only made when a limit is asked for, without one the copies don't go
+ * through here at all.
+ *
+ * <p>Transfers that run side by side in a batch or the daemon share one
+ * Bandwidth, each gets a view of it for its own hosts with forHosts(), so
+ * the limits hold for all of them together.
+ */
+class Bandwidth {
+  private Logger log = Logger.getLogger(getClass());
+  private RateLimiter global;
+  /** The limiter of each host argument, hosts with the same name share one */
+  private RateLimiter[] hosts;
+  /** The limiters by host name, guarded by itself */
+  private Map<String, RateLimiter> byName;
+  private File controlFile;
+  private long controlModified = 0;
+  private Thread watcher;
+
+  /**
+   * Limits for one transfer between these hosts
+   */
+  Bandwidth(HostFileInfo[] hfs, Options opts) throws IOException {
+    this(opts);
+    hosts = hostsOf(hfs);
+    for (String name : opts.hostLimits.keySet()) {
+      if (!isHost(hfs, name)) {
+        throw new IOException("--limit-host: no host named '" + name + "'");
+      }
+    }
+  }
+
+  /**
+   * Limits shared by several transfers, see forHosts()
+   */
+  Bandwidth(Options opts) throws IOException {
+    global = new RateLimiter(opts.limit);
+    byName = new LinkedHashMap<String, RateLimiter>();
+    for (Map.Entry<String, Long> e : opts.hostLimits.entrySet()) {
+      limiter(e.getKey()).setRate(e.getValue());
+    }
+    if (opts.limitFile != null) {
+      controlFile = new File(opts.limitFile);
+      reload();
+      watch();
+    }
+  }
+
+  private Bandwidth(Bandwidth shared, HostFileInfo[] hfs) {
+    global = shared.global;
+    byName = shared.byName;
+    hosts  = hostsOf(hfs);
+  }
+
+  /**
+   * The same limits, for a transfer between these hosts
+   */
+  public Bandwidth forHosts(HostFileInfo[] hfs) {
+    return new Bandwidth(this, hfs);
+  }
+
+  private RateLimiter[] hostsOf(HostFileInfo[] hfs) {
+    RateLimiter[] limiters = new RateLimiter[hfs.length];
+    for (int i=0; i<hfs.length; i++) {
+      limiters[i] = limiter(hfs[i].host);
+    }
+    return limiters;
+  }
+
+  private static boolean isHost(HostFileInfo[] hfs, String name) {
+    for (HostFileInfo hf : hfs) {
+      if (hf.host.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The limiter of a host, a new one without a limit for a host we have not
+   * seen yet
+   */
+  private RateLimiter limiter(String name) {
+    synchronized (byName) {
+      RateLimiter limiter = byName.get(name);
+      if (limiter == null) {
+        limiter = new RateLimiter(0);
+        byName.put(name, limiter);
+      }
+      return limiter;
+    }
+  }
+
+  /**
+   * Whether any limit is asked for
+   */
+  static boolean isNeeded(Options opts) {
+    return opts.limit > 0 || !opts.hostLimits.isEmpty() || opts.limitFile != null;
+  }
+
+  /**
+   * Wait until bytes may be read from the source
+   */
+  public void read(long bytes) throws IOException {
+    global.acquire(bytes);
+    hosts[0].acquire(bytes);
+  }
+
+  /**
+   * Wait until bytes may be written to a destination
+   *
+   * @param d the destination host number
+   */
+  public void write(int d, long bytes) throws IOException {
+    hosts[d].acquire(bytes);
+  }
+
+  /**
+   * A stream that reads from the source within the limits
+   */
+  public InputStream source(InputStream in) {
+    return new FilterInputStream(in) {
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          Bandwidth.this.read(1);
+        }
+        return b;
+      }
+
+      public int read(byte[] buf, int off, int len) throws IOException {
+        int r = super.read(buf, off, len);
+        if (r > 0) {
+          Bandwidth.this.read(r);
+        }
+        return r;
+      }
+    };
+  }
+
+  /**
+   * A stream that writes to a destination within the limits
+   *
+   * @param d the destination host number
+   */
+  public OutputStream destination(final int d, OutputStream out) {
+    return new FilterOutputStream(out) {
+      public void write(int b) throws IOException {
+        Bandwidth.this.write(d, 1);
+        out.write(b);
+      }
+
+      public void write(byte[] buf, int off, int len) throws IOException {
+        Bandwidth.this.write(d, len);
+        out.write(buf, off, len);
+      }
+    };
+  }
+
+  /**
+   * Check the control file for changes once a second
+   */
+  private void watch() {
+    watcher = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(1000);
+            if (controlFile.lastModified() != controlModified) {
+              reload();
+            }
+          }
+        } catch (InterruptedException e) {
+          // Done
+        }
+      }
+    }, "sftpsquid-limits");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * Stop checking the control file, does nothing on a view from forHosts()
+   */
+  public void stop() {
+    if (watcher != null) {
+      watcher.interrupt();
+    }
+  }
+
+  /**
+   * Set the limits from the control file. Limits that are not in the file
+   * stay as they are, a rate of 0 removes a limit. A host that no transfer
+   * has used yet gets its limit for when one does.
+   */
+  private void reload() {
+    controlModified = controlFile.lastModified();
+    if (!controlFile.exists()) {
+      return;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(controlFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+          }
+          String[] parts = line.split("\\s+");
+          if (parts.length != 2) {
+            log.warn("Ignoring line in " + controlFile + ": " + line);
+            continue;
+          }
+          long rate;
+          try {
+            rate = Options.parseSize(parts[1]);
+          } catch (NumberFormatException e) {
+            log.warn("Ignoring line in " + controlFile + ": " + line);
+            continue;
+          }
+          RateLimiter limiter = parts[0].equals("global") ? global : limiter(parts[0]);
+          if (rate != limiter.getRate()) {
+            log.info("Limit for " + parts[0] + " is now " + (rate == 0 ? "off" : rate + " bytes/s"));
+            limiter.setRate(rate);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      log.warn("Could not read " + controlFile + ": " + e);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many transfers from a batch file in one process, over connections
+ * that are shared by all of them, see ConnectionPool.
+ *
+ * <p>Each line in the file is a source followed by one or more destinations,
+ * in the same form as on the command line. An arrow between them is allowed,
+ * empty lines and lines starting with # are skipped:
+ *
+ * <pre>
+ *   alice@src.example.org:data/run1 -&gt; bob@dst.example.org:incoming
+ *   alice@src.example.org:data/run2 bob@dst.example.org:incoming carol@backup.example.org:
+ * </pre>
+ *
+ * <p>Every user and host is logged in to once, however many lines it is on,
+ * and at most --jobs transfers run at the same time. The bandwidth limits
+ * are for all of them together.
+ */
+class Batch {
+  private Logger log = Logger.getLogger(getClass());
+  private Options opts;
+  private List<HostFileInfo[]> jobs = new ArrayList<HostFileInfo[]>();
+  /** The line in the batch file of each job, for the messages */
+  private List<Integer> lines = new ArrayList<Integer>();
+
+  /**
+   * Read the batch file given with --batch
+   */
+  Batch(Options opts) throws IOException {
+    this.opts = opts;
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(opts.batch), "UTF-8"));
+    try {
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          jobs.add(SftpSquid.parseArgs(split(line)));
+        } catch (IOException e) {
+          throw new IOException(opts.batch + " line " + number + ": " + e.getMessage());
+        }
+        lines.add(number);
+      }
+    } finally {
+      in.close();
+    }
+    if (jobs.isEmpty()) {
+      throw new IOException("No transfers in " + opts.batch);
+    }
+  }
+
+  /**
+   * The arguments on a line, without the arrows
+   */
+  static String[] split(String line) {
+    List<String> args = new ArrayList<String>();
+    for (String arg : line.trim().split("\\s+")) {
+      if (!arg.isEmpty() && !arg.equals("->") && !arg.equals("\u2192")) {
+        args.add(arg);
+      }
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * Run all transfers
+   *
+   * @return true if all of them succeeded
+   */
+  public boolean run() throws IOException {
+    final ConnectionPool pool = new ConnectionPool(opts);
+    final Bandwidth bandwidth = Bandwidth.isNeeded(opts) ? new Bandwidth(opts) : null;
+    try {
+      for (HostFileInfo[] hfs : jobs) {
+        pool.askPasswords(hfs);
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(opts.jobs, jobs.size()));
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i=0; i<jobs.size(); i++) {
+        final HostFileInfo[] hfs = jobs.get(i);
+        final Options jobOpts = jobOptions(opts.withArgs(new String[0]), i + 1);
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            new SftpSquid(hfs, jobOpts, pool, bandwidth).run();
+            return null;
+          }
+        }));
+      }
+      executor.shutdown();
+
+      int failed = 0;
+      for (int i=0; i<futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while waiting for the transfers");
+        } catch (ExecutionException e) {
+          failed++;
+          log.debug("Job " + (i + 1) + " failed", e.getCause());
+          System.err.printf("Line %d of %s failed: %s\n", lines.get(i), opts.batch, e.getCause().getMessage());
+        }
+      }
+      System.out.printf("%d of %d transfers done, %d failed\n", jobs.size() - failed, jobs.size(), failed);
+      return failed == 0;
+    } finally {
+      if (bandwidth != null) {
+        bandwidth.stop();
+      }
+      pool.close();
+    }
+  }
+
+  /**
+   * Make options for one of many jobs, the files that are given as options
+   * get the job number added so the jobs don't write to the same file
+   *
+   * @param o a copy of the options that is changed and returned
+   */
+  static Options jobOptions(Options o, int job) {
+    o.batch = null;
+    o.daemon = 0;
+    o.batchJob = true;
+    if (o.journal != null) {
+      o.journal += "-job" + job;
+    }
+    if (o.manifest != null) {
+      o.manifest += "-job" + job;
+    }
+    if (o.metricsJson != null) {
+      o.metricsJson += "-job" + job;
+    }
+    if (o.metricsProm != null) {
+      o.metricsProm += "-job" + job;
+    }
+    return o;
+  }
+}
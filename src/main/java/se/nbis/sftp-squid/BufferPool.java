@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copy buffers that are handed back and reused, so copying many files does
+ * not allocate new rings for every one of them.
+ *
+ * <p>Buffers are kept in buckets by size rounded up to a power of two, a
+ * buffer can be larger than asked for. Only up to a maximum number of bytes
+ * is kept, the rest are left to the garbage collector. Taking and giving
+ * back a buffer allocates nothing once the pool is warm. Buffers larger
+ * than MAX_POOLED_SIZE are allocated at the size asked for and not kept.
+ *
+ * <p>The buffers are plain arrays, sshj reads and writes byte arrays so a
+ * direct buffer would only add a copy.
+ */
+class BufferPool {
+  /** Kept by the shared pool, the rings of many parallel copies */
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  /** The pool the copiers use unless given another one */
+  static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_BYTES);
+  /** Largest buffer that is pooled, a power of two */
+  static final int MAX_POOLED_SIZE = 16 * 1024 * 1024;
+
+  private final long maxBytes;
+  private final AtomicLong kept = new AtomicLong(0);
+  /** Free buffers of 2^i bytes, each bucket is locked on its own */
+  private final ArrayDeque<?>[] buckets = new ArrayDeque<?>[bucket(MAX_POOLED_SIZE) + 1];
+
+  /**
+   * @param maxBytes bytes of free buffers to keep, 0 to keep none
+   */
+  BufferPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+    for (int i=0; i<buckets.length; i++) {
+      buckets[i] = new ArrayDeque<byte[]>();
+    }
+  }
+
+  private static int bucket(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private ArrayDeque<byte[]> bucketOf(int size) {
+    return (ArrayDeque<byte[]>) buckets[bucket(size)];
+  }
+
+  /**
+   * Take a buffer of at least size bytes
+   */
+  public byte[] take(int size) {
+    if (size > MAX_POOLED_SIZE) {
+      return new byte[size];
+    }
+    ArrayDeque<byte[]> free = bucketOf(size);
+    synchronized (free) {
+      byte[] buf = free.pollFirst();
+      if (buf != null) {
+        kept.addAndGet(-buf.length);
+        return buf;
+      }
+    }
+    return new byte[1 << bucket(size)];
+  }
+
+  /**
+   * Give back a buffer from take(). Nobody may use it after this.
+   */
+  public void give(byte[] buf) {
+    if (buf.length > MAX_POOLED_SIZE || Integer.bitCount(buf.length) != 1) {
+      return; // Not from a bucket
+    }
+    if (kept.addAndGet(buf.length) > maxBytes) {
+      kept.addAndGet(-buf.length);
+      return;
+    }
+    ArrayDeque<byte[]> free = bucketOf(buf.length);
+    synchronized (free) {
+      free.addFirst(buf);
+    }
+  }
+
+  /**
+   * Bytes in free buffers
+   */
+  public long kept() {
+    return kept.get();
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.Config;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.NegotiatedAlgorithms;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.transport.verification.AlgorithmsVerifier;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.UserAuthException;
+import net.schmizz.sshj.userauth.method.AuthKeyboardInteractive;
+import net.schmizz.sshj.userauth.method.AuthMethod;
+import net.schmizz.sshj.userauth.method.AuthPassword;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authenticated connections, shared by everything that transfers to or from
+ * the same user and host.
+ *
+ * <p>SFTP sessions are opened as channels on the existing connections, a new
+ * connection is only made when a server refuses more channels. Connections
+ * to different hosts can be made at the same time, connections to one host
+ * are made one at a time.
+ *
+ * <p>Sessions that are given back with release() are kept open and handed
+ * out again, so a transfer that follows another one starts right away. With
+ * startEviction() sessions and connections that have not been used for a
+ * while are closed.
+ *
+ * <p>Passwords are kept in memory by user and host, so a host is only asked
+ * for once even if it is used by several transfers.
+ */
+class ConnectionPool {
+  private Logger log = Logger.getLogger(getClass());
+  /** The sshj config with the algorithm order, for all connections */
+  private Config sshConfig;
+  /** Seconds between keepalive messages on each connection, 0 for none */
+  private int keepAlive = 0;
+  /** Connections and sessions by user and host */
+  private ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+  /** Passwords by user and host */
+  private ConcurrentHashMap<String, char[]> passwords = new ConcurrentHashMap<String, char[]>();
+  private Thread evictor;
+
+  /**
+   * The connections and sessions to one user and host, only used while
+   * holding its lock
+   */
+  private static class Host {
+    List<SSHClient> connections = new ArrayList<SSHClient>();
+    /** The connection of every open session, in use or not */
+    Map<SFTPClient, SSHClient> owners = new IdentityHashMap<SFTPClient, SSHClient>();
+    /** Sessions that no transfer uses, the most recently released first */
+    LinkedList<SFTPClient> idle = new LinkedList<SFTPClient>();
+    /** When each connection or idle session was last given back */
+    Map<Object, Long> lastUsed = new IdentityHashMap<Object, Long>();
+  }
+
+  ConnectionPool(Options opts) throws IOException {
+    sshConfig = AlgorithmChooser.configure(opts);
+    setKeepAlive(opts.keepAlive);
+  }
+
+  /**
+   * Send a keepalive on every connection made from now on, so firewalls
+   * don't drop them while they wait for work and a dead connection is
+   * noticed even if nothing is sent on it
+   *
+   * @param seconds between keepalives, 0 for none
+   */
+  public void setKeepAlive(int seconds) {
+    if (seconds > 0) {
+      sshConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+    }
+    keepAlive = seconds;
+  }
+
+  /**
+   * Ask for the password of every user and host that we don't know yet
+   */
+  public void askPasswords(HostFileInfo[] hfs) {
+    for (HostFileInfo hf : hfs) {
+      String key = hf.userHostSpec();
+      if (hf.password == null && !passwords.containsKey(key)) {
+        passwords.put(key, Prompt.readPassword(String.format("Password for %s:", key)));
+      }
+      if (hf.password == null) {
+        hf.password = passwords.get(key);
+      }
+    }
+  }
+
+  private Host host(HostFileInfo hf) {
+    String key = hf.userHostSpec();
+    Host host = hosts.get(key);
+    if (host == null) {
+      hosts.putIfAbsent(key, new Host());
+      host = hosts.get(key);
+    }
+    return host;
+  }
+
+  /**
+   * Whether the connection a session was opened on is still up
+   */
+  public boolean isConnected(HostFileInfo hf, SFTPClient sftp) {
+    Host host = host(hf);
+    synchronized (host) {
+      SSHClient ssh = host.owners.get(sftp);
+      return ssh != null && ssh.isConnected();
+    }
+  }
+
+  /**
+   * Whether a session can still be used, its connection is up and its
+   * channel has not been closed
+   */
+  public boolean isOpen(HostFileInfo hf, SFTPClient sftp) {
+    return isConnected(hf, sftp) && sftp.getSFTPEngine().getSubsystem().isOpen();
+  }
+
+  /**
+   * Make sure there is a connection to a host
+   *
+   * @param metrics where to count the time it takes to connect
+   */
+  public void connect(HostFileInfo hf, Metrics metrics) throws IOException {
+    Host host = host(hf);
+    synchronized (host) {
+      removeClosed(host);
+      if (host.connections.isEmpty()) {
+        host.connections.add(connectRetrying(hf, metrics));
+      }
+    }
+  }
+
+  /**
+   * Get an SFTP session to a host. An idle session is used if there is one,
+   * otherwise a new one is opened on an existing connection if it has room.
+   * Give it back with release() when done.
+   *
+   * @param metrics where to count the time it takes to connect
+   */
+  public SFTPClient newSFTPClient(HostFileInfo hf, Metrics metrics) throws IOException {
+    Host host = host(hf);
+    synchronized (host) {
+      removeClosed(host);
+      if (!host.idle.isEmpty()) {
+        SFTPClient sftp = host.idle.removeFirst();
+        host.lastUsed.remove(sftp);
+        return sftp;
+      }
+      for (SSHClient ssh : host.connections) {
+        try {
+          return open(host, ssh);
+        } catch (ConnectionException e) {
+          log.debug("No more channels on " + hf.userHostSpec() + ": " + e);
+        }
+      }
+      SSHClient ssh = connectRetrying(hf, metrics);
+      host.connections.add(ssh);
+      return open(host, ssh);
+    }
+  }
+
+  private SFTPClient open(Host host, SSHClient ssh) throws IOException {
+    SFTPClient sftp = ssh.newSFTPClient();
+    host.owners.put(sftp, ssh);
+    host.lastUsed.remove(ssh);
+    return sftp;
+  }
+
+  /**
+   * Give back a session from newSFTPClient()
+   *
+   * @param reuse false if the session may be in a bad state and should be
+   *              closed instead of handed out again
+   */
+  public void release(HostFileInfo hf, SFTPClient sftp, boolean reuse) {
+    Host host = host(hf);
+    synchronized (host) {
+      SSHClient ssh = host.owners.get(sftp);
+      if (reuse && ssh != null && ssh.isConnected()) {
+        host.idle.addFirst(sftp);
+        host.lastUsed.put(sftp, System.currentTimeMillis());
+        return;
+      }
+      closeSession(host, sftp);
+    }
+  }
+
+  private void closeSession(Host host, SFTPClient sftp) {
+    SSHClient ssh = host.owners.remove(sftp);
+    host.lastUsed.remove(sftp);
+    if (ssh != null && !host.owners.containsValue(ssh)) {
+      host.lastUsed.put(ssh, System.currentTimeMillis());
+    }
+    try {
+      sftp.close();
+    } catch (IOException e) {
+      log.debug("Could not close SFTP session: " + e);
+    }
+  }
+
+  /**
+   * Forget connections that have been closed, and their sessions
+   */
+  private void removeClosed(Host host) {
+    Iterator<SSHClient> it = host.connections.iterator();
+    while (it.hasNext()) {
+      SSHClient ssh = it.next();
+      if (!ssh.isConnected()) {
+        it.remove();
+        host.lastUsed.remove(ssh);
+      }
+    }
+    Iterator<SFTPClient> idle = host.idle.iterator();
+    while (idle.hasNext()) {
+      SFTPClient sftp = idle.next();
+      if (!host.owners.get(sftp).isConnected()) {
+        idle.remove();
+        host.owners.remove(sftp);
+        host.lastUsed.remove(sftp);
+      }
+    }
+  }
+
+  /**
+   * Close sessions that have been idle for longer than idleSeconds, and then
+   * connections that have had no sessions for as long. Runs until close().
+   */
+  public void startEviction(final int idleSeconds) {
+    evictor = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(Math.min(idleSeconds, 10) * 1000L);
+            evict(System.currentTimeMillis() - idleSeconds * 1000L);
+          }
+        } catch (InterruptedException e) {
+          // Done
+        }
+      }
+    }, "sftpsquid-pool");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  private void evict(long before) {
+    for (Map.Entry<String, Host> e : hosts.entrySet()) {
+      Host host = e.getValue();
+      synchronized (host) {
+        removeClosed(host);
+        for (SFTPClient sftp : new ArrayList<SFTPClient>(host.idle)) {
+          if (host.lastUsed.get(sftp) < before) {
+            log.debug("Closing idle session to " + e.getKey());
+            host.idle.remove(sftp);
+            closeSession(host, sftp);
+          }
+        }
+        Iterator<SSHClient> it = host.connections.iterator();
+        while (it.hasNext()) {
+          SSHClient ssh = it.next();
+          Long used = host.lastUsed.get(ssh);
+          if (used != null && used < before && !host.owners.containsValue(ssh)) {
+            log.debug("Closing idle connection to " + e.getKey());
+            it.remove();
+            host.lastUsed.remove(ssh);
+            try {
+              ssh.close();
+            } catch (IOException ex) {
+              log.debug("Could not close connection: " + ex);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Number of connections, sessions and idle sessions by user and host
+   */
+  public Map<String, int[]> usage() {
+    Map<String, int[]> usage = new TreeMap<String, int[]>();
+    for (Map.Entry<String, Host> e : hosts.entrySet()) {
+      Host host = e.getValue();
+      synchronized (host) {
+        usage.put(e.getKey(), new int[] { host.connections.size(), host.owners.size(), host.idle.size() });
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * Close all connections
+   */
+  public void close() throws IOException {
+    if (evictor != null) {
+      evictor.interrupt();
+    }
+    for (Host host : hosts.values()) {
+      synchronized (host) {
+        for (SSHClient ssh : host.connections) {
+          if (ssh.isConnected()) {
+            ssh.close();
+          }
+        }
+        host.connections.clear();
+        host.owners.clear();
+        host.idle.clear();
+        host.lastUsed.clear();
+      }
+    }
+  }
+
+  /**
+   * Connect to one server, letting the user retry the password a few times.
+   */
+  private SSHClient connectRetrying(HostFileInfo hf, Metrics metrics) throws IOException {
+    try {
+      int tries = 3;
+      while (true) {
+        try {
+          SSHClient ssh = open(hf, metrics);
+          if (hf.password != null) {
+            passwords.put(hf.userHostSpec(), hf.password);
+          }
+          return ssh;
+        } catch (UserAuthException e) {
+          System.err.println("Incorrect username and/or password for " + hf.userHostSpec() + " try again.");
+          // Ask again
+          hf.password = null;
+          passwords.remove(hf.userHostSpec());
+          if (--tries <= 0) {
+            throw e;
+          }
+        }
+      }
+    } catch (TransportException e) {
+      System.err.println("Something went wrong: " + e);
+      throw e;
+    } catch (ConnectException e) {
+      System.err.printf("Connection failure for %s: %s\n", hf.userHostSpec(), e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Connect to one SFTP server
+   *
+   * @param  HostFileInfo A HostFileInfo object representing the server
+   * @return SSHClient
+   */
+  private SSHClient open(final HostFileInfo hf, final Metrics metrics) throws IOException {
+    log.debug("Connecting to " + hf);
+    SSHClient ssh = new SSHClient(sshConfig);
+    if (keepAlive > 0) {
+      ssh.getConnection().getKeepAlive().setKeepAliveInterval(keepAlive);
+    }
+    ssh.addHostKeyVerifier(new PromiscuousVerifier());
+    ssh.addAlgorithmsVerifier(new AlgorithmsVerifier() {
+      public boolean verify(NegotiatedAlgorithms algorithms) {
+        metrics.algorithms(hf.userHostSpec(), algorithms);
+        return true;
+      }
+    });
+    long start = System.nanoTime();
+    ssh.connect(hf.host, hf.port);
+    metrics.connectNanos.addAndGet(System.nanoTime() - start);
+
+    start = System.nanoTime();
+    try {
+      List<AuthMethod> authmethods = new LinkedList<AuthMethod>();
+      authmethods.add(new AuthKeyboardInteractive(new UserKeyboardAuth(hf)));
+      authmethods.add(new AuthPassword(new PasswordAuth(hf)));
+      ssh.auth(hf.user, authmethods);
+    } catch (IOException e) {
+      ssh.close(); // We have to clean this up
+      throw e;
+    } finally {
+      metrics.authNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    return ssh;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals from all copies, shared between the workers
+ */
+class CopyStats {
+  /** Bytes copied */
+  public AtomicLong bytes = new AtomicLong(0);
+  /** Time spent waiting on the source, summed over all workers */
+  public AtomicLong sourceWaitNanos = new AtomicLong(0);
+  /** Time spent waiting on the destination, summed over all workers */
+  public AtomicLong destinationWaitNanos = new AtomicLong(0);
+  /** Files that were already up to date on the destination */
+  public AtomicLong skippedFiles = new AtomicLong(0);
+
+  /**
+   * Add the numbers from one finished copy
+   */
+  public void add(PipelinedCopier pc, long transferred) {
+    bytes.addAndGet(transferred);
+    sourceWaitNanos.addAndGet(pc.getWriterWaitNanos());
+    destinationWaitNanos.addAndGet(pc.getReaderWaitNanos());
+  }
+
+  /**
+   * Which side we waited most on
+   */
+  public String bottleneck() {
+    if (sourceWaitNanos.get() > destinationWaitNanos.get()) {
+      return "source";
+    }
+    return "destination";
+  }
+
+  /**
+   * A one line summary for the user
+   */
+  public String summary() {
+    return String.format("Copied %d bytes, skipped %d unchanged files, waited %.1fs on source and %.1fs on destination (bottleneck: %s)",
+        bytes.get(), skippedFiles.get(), sourceWaitNanos.get() / 1e9, destinationWaitNanos.get() / 1e9, bottleneck());
+  }
+}
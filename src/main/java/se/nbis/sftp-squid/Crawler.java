@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree on the source, listing several directories at once.
+ *
+ * <p>Files are handed to the listener as soon as they are found, with the
+ * attributes that came with the directory listing, so no extra stat is needed
+ * except for symbolic links.
+ */
+class Crawler {
+  /**
+   * Gets told about every regular file in the tree, and when the listing is
+   * done
+   */
+  interface Listener {
+    void file(String path, FileAttributes attributes) throws IOException;
+
+    /**
+     * Called once, when all directories are listed or the first one failed
+     *
+     * @param error the failure, null if everything was listed
+     */
+    void done(IOException error);
+  }
+
+  private Logger log = Logger.getLogger(getClass());
+  private List<SFTPClient> clients;
+  private Listener listener;
+  private ExecutorService executor;
+  /** Used to spread the listings over the sessions */
+  private AtomicInteger nextClient = new AtomicInteger(0);
+  /** Directories that are queued or being listed */
+  private int pendingDirs = 0;
+  private IOException error;
+  /** Whether the listener has been told that we are done */
+  private boolean reported = false;
+  /** Where to add the time spent waiting on listings */
+  private AtomicLong listNanos;
+
+  /**
+   * @param clients SFTP sessions to the source, one listing runs per session
+   * @param listener gets the files that are found
+   * @param listNanos where to add the time spent waiting on listings
+   */
+  Crawler(List<SFTPClient> clients, Listener listener, AtomicLong listNanos) {
+    this.clients  = clients;
+    this.listener = listener;
+    this.listNanos = listNanos;
+    this.executor = Executors.newFixedThreadPool(clients.size(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "sftpsquid-crawler");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Start listing from a directory, returns at once.
+   */
+  public void start(String dir) {
+    log.debug("Crawling from " + dir);
+    submit(dir);
+  }
+
+  /**
+   * Wait until the whole tree is listed.
+   *
+   * @throws IOException the first error any of the listings got
+   */
+  public synchronized void await() throws IOException {
+    try {
+      while (pendingDirs > 0 && error == null) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while listing");
+    } finally {
+      executor.shutdownNow();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Stop listing if it is not done yet, used when the transfer fails
+   */
+  public synchronized void stop() {
+    if (error == null && pendingDirs > 0) {
+      error = new IOException("Listing stopped");
+    }
+    executor.shutdownNow();
+    notifyAll();
+  }
+
+  private synchronized void submit(final String dir) {
+    if (error != null) {
+      return;
+    }
+    pendingDirs++;
+    executor.submit(new Runnable() {
+      public void run() {
+        try {
+          list(dir);
+          finished(null);
+        } catch (IOException e) {
+          finished(e);
+        }
+      }
+    });
+  }
+
+  private synchronized void finished(IOException e) {
+    pendingDirs--;
+    if (e != null && error == null) {
+      error = e;
+    }
+    if ((pendingDirs == 0 || error != null) && !reported) {
+      reported = true;
+      listener.done(error);
+    }
+    notifyAll();
+  }
+
+  private void list(String dir) throws IOException {
+    SFTPClient c = clients.get(nextClient.getAndIncrement() % clients.size());
+    long start = System.nanoTime();
+    List<RemoteResourceInfo> entries = c.ls(dir);
+    listNanos.addAndGet(System.nanoTime() - start);
+
+    for (RemoteResourceInfo entry : entries) {
+      String path = entry.getPath();
+      FileAttributes attributes = entry.getAttributes();
+      if (attributes.getType() == FileMode.Type.SYMKLINK) {
+        attributes = c.stat(path);
+      }
+
+      FileMode.Type type = attributes.getType();
+      if (type == FileMode.Type.DIRECTORY) {
+        submit(path);
+      } else if (type == FileMode.Type.REGULAR) {
+        listener.file(path, attributes);
+      } else {
+        throw new IOException("Can't transfer this type of file (" + type + "): " + path);
+      }
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps connections open and runs transfers that are sent to it over HTTP on
+ * localhost, so a transfer doesn't have to start a JVM and log in first.
+ *
+ * <p>The connections are kept in a ConnectionPool, sessions that have not
+ * been used for --idle-timeout seconds are closed. The hosts given on the
+ * command line are logged in to at start, other hosts when a job first needs
+ * them, asking on the daemon's console if it has one.
+ *
+ * <p>The API, all answers are JSON:
+ *
+ * <pre>
+ *   POST /jobs       one job per line of the body, in the --batch format,
+ *                    options for the job may come before the hosts
+ *   GET  /jobs       all jobs with their state and throughput
+ *   GET  /jobs/ID    one job with all its metrics
+ *   GET  /status     jobs and connections
+ * </pre>
+ *
+ * <p>Every request needs the header "Authorization: Bearer TOKEN", with the
+ * token the daemon writes at start to ~/.sftpsquid/daemon-PORT.token, which
+ * only the user can read. Anyone else on the machine could otherwise use the
+ * logged in sessions. For the same reason a job may only give the options in
+ * JOB_OPTIONS, none of which name a local file. The bandwidth limits are
+ * the daemon's, for all jobs together, so jobs can't give their own.
+ *
+ * <p>At most --jobs jobs run at the same time, the rest wait in order.
+ */
+class Daemon {
+  /** Finished jobs that are remembered, the oldest are forgotten first */
+  static final int MAX_FINISHED_JOBS = 1000;
+  /** Options a job may give, the others are only for the daemon's command line */
+  static final Set<String> JOB_OPTIONS = new HashSet<String>(Arrays.asList(
+      "--parallel", "--in-flight", "--chunk-threshold", "--order", "--resume", "--sync",
+      "--preserve", "--checksum", "--checksum-block", "--verify", "--lag-timeout", "--retries"));
+
+  private Logger log = Logger.getLogger(getClass());
+  private Options opts;
+  private ConnectionPool pool;
+  /** Limits shared by all jobs, null without limits */
+  private Bandwidth bandwidth;
+  private ExecutorService scheduler;
+  private HttpServer server;
+  private AtomicInteger lastId = new AtomicInteger(0);
+  /** All jobs by id, guarded by itself */
+  private Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+  private long startMillis = System.currentTimeMillis();
+  /** What clients must send in the Authorization header */
+  private byte[] authorization;
+
+  /**
+   * One transfer sent to the daemon
+   */
+  class Job implements Runnable {
+    final int id;
+    final String line;
+    final HostFileInfo[] hfs;
+    final Options opts;
+    volatile String state = "queued";
+    volatile String error;
+    volatile long started;
+    volatile long finished;
+    volatile SftpSquid transfer;
+
+    Job(int id, String line, HostFileInfo[] hfs, Options opts) {
+      this.id    = id;
+      this.line  = line;
+      this.hfs   = hfs;
+      this.opts  = opts;
+    }
+
+    public void run() {
+      started = System.currentTimeMillis();
+      state = "running";
+      try {
+        pool.askPasswords(hfs);
+        transfer = new SftpSquid(hfs, opts, pool, bandwidth);
+        transfer.run();
+        state = "done";
+      } catch (Exception e) {
+        log.debug("Job " + id + " failed", e);
+        error = e.getMessage() != null ? e.getMessage() : e.toString();
+        state = "failed";
+      } finally {
+        finished = System.currentTimeMillis();
+      }
+      log.info("Job " + id + " " + state);
+    }
+
+    /** Bytes read from the source so far */
+    long bytes() {
+      SftpSquid t = transfer;
+      return t == null ? 0 : t.getMetrics().hostBytes[0].get();
+    }
+
+    String toJson() {
+      long end = finished > 0 ? finished : System.currentTimeMillis();
+      double seconds = started > 0 ? (end - started) / 1000.0 : 0;
+      long bytes = bytes();
+      return "{\"id\": " + id
+        + ", \"state\": " + Metrics.quote(state)
+        + ", \"transfer\": " + Metrics.quote(line)
+        + ", \"bytes\": " + bytes
+        + ", \"seconds\": " + Metrics.number(seconds)
+        + ", \"bytes_per_second\": " + Metrics.number(seconds > 0 ? bytes / seconds : 0)
+        + (error != null ? ", \"error\": " + Metrics.quote(error) : "")
+        + "}";
+    }
+  }
+
+  Daemon(Options opts) throws IOException {
+    this.opts = opts;
+    pool = new ConnectionPool(opts);
+    if (Bandwidth.isNeeded(opts)) {
+      bandwidth = new Bandwidth(opts);
+    }
+  }
+
+  /**
+   * Log in to the hosts from the command line, then take jobs until the
+   * process is stopped
+   */
+  public void run() throws IOException {
+    List<HostFileInfo> hfs = new ArrayList<HostFileInfo>();
+    for (String arg : opts.hosts) {
+      // The arguments have no path, a ':' in them comes before a port
+      try {
+        hfs.add(new HostFileInfo(arg + ":"));
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed port in host argument '" + arg + "'");
+      } catch (IOException e) {
+        throw new IOException("Malformed host argument '" + arg + "'");
+      }
+    }
+    HostFileInfo[] login = hfs.toArray(new HostFileInfo[hfs.size()]);
+    pool.askPasswords(login);
+    Metrics metrics = new Metrics(login, new CopyStats());
+    for (HostFileInfo hf : login) {
+      pool.connect(hf, metrics);
+    }
+    pool.startEviction(opts.idleTimeout);
+
+    File tokenFile = writeToken();
+
+    scheduler = Executors.newFixedThreadPool(opts.jobs);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), opts.daemon), 0);
+    server.createContext("/jobs", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if (isAuthorized(exchange)) {
+          handleJobs(exchange);
+        }
+      }
+    });
+    server.createContext("/status", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if (isAuthorized(exchange)) {
+          reply(exchange, 200, status());
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        try {
+          pool.close();
+        } catch (IOException e) {
+          log.debug("Could not close connections: " + e);
+        }
+      }
+    }, "sftpsquid-shutdown"));
+    server.start();
+    System.out.printf("Taking jobs on http://localhost:%d/jobs, with the token in %s\n",
+        opts.daemon, tokenFile);
+  }
+
+  /**
+   * Make a new random token and write it to a file only the user can read
+   *
+   * @return the file
+   */
+  private File writeToken() throws IOException {
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    String token = Manifest.toHex(random);
+    authorization = ("Bearer " + token).getBytes("UTF-8");
+
+    File dir = new File(System.getProperty("user.home"), ".sftpsquid");
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    File file = new File(dir, "daemon-" + opts.daemon + ".token");
+    Files.deleteIfExists(file.toPath());
+    try {
+      Files.createFile(file.toPath(),
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system, keep it to the owner as well as we can
+      Files.createFile(file.toPath());
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+    }
+    Files.write(file.toPath(), (token + "\n").getBytes("UTF-8"));
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * Whether the request has the token, if not it is answered here
+   */
+  private boolean isAuthorized(HttpExchange exchange) throws IOException {
+    String header = exchange.getRequestHeaders().getFirst("Authorization");
+    if (header != null && MessageDigest.isEqual(authorization, header.trim().getBytes("UTF-8"))) {
+      return true;
+    }
+    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+    reply(exchange, 401, error("Needs the token from the daemon's token file"));
+    return false;
+  }
+
+  private void handleJobs(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+      String method = exchange.getRequestMethod();
+      if (path.equals("/jobs") && method.equals("POST")) {
+        String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+        reply(exchange, 201, submit(body));
+      } else if (path.equals("/jobs") && method.equals("GET")) {
+        reply(exchange, 200, list());
+      } else if (path.startsWith("/jobs/") && method.equals("GET")) {
+        Job job;
+        synchronized (jobs) {
+          job = jobs.get(Integer.valueOf(path.substring("/jobs/".length())));
+        }
+        if (job == null) {
+          reply(exchange, 404, error("No such job"));
+        } else {
+          reply(exchange, 200, details(job));
+        }
+      } else {
+        reply(exchange, 405, error("Use POST or GET on /jobs, or GET on /jobs/ID"));
+      }
+    } catch (NumberFormatException e) {
+      reply(exchange, 404, error("No such job"));
+    } catch (IOException e) {
+      reply(exchange, 400, error(e.getMessage()));
+    }
+  }
+
+  /**
+   * Queue the jobs in the body, all or none of them
+   */
+  private String submit(String body) throws IOException {
+    List<Job> added = new ArrayList<Job>();
+    for (String line : body.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] args = Batch.split(line);
+      for (String arg : args) {
+        if (arg.startsWith("--") && !JOB_OPTIONS.contains(arg)) {
+          throw new IOException("Option " + arg + " can't be given to a job");
+        }
+      }
+      int id = lastId.incrementAndGet();
+      Options jobOpts = opts.withArgs(args);
+      HostFileInfo[] hfs = SftpSquid.parseArgs(jobOpts.hosts.toArray(new String[jobOpts.hosts.size()]));
+      added.add(new Job(id, line, hfs, Batch.jobOptions(jobOpts, id)));
+    }
+    if (added.isEmpty()) {
+      throw new IOException("No jobs in the request");
+    }
+    StringBuilder sb = new StringBuilder("[\n");
+    for (Job job : added) {
+      synchronized (jobs) {
+        jobs.put(job.id, job);
+        forgetFinished();
+      }
+      scheduler.execute(job);
+      sb.append("  ").append(job.toJson()).append(job == added.get(added.size() - 1) ? "\n" : ",\n");
+    }
+    return sb.append("]\n").toString();
+  }
+
+  /**
+   * Drop the oldest finished jobs when there are too many
+   */
+  private void forgetFinished() {
+    int finished = 0;
+    for (Job job : jobs.values()) {
+      if (job.finished > 0) {
+        finished++;
+      }
+    }
+    Iterator<Job> it = jobs.values().iterator();
+    while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+      if (it.next().finished > 0) {
+        it.remove();
+        finished--;
+      }
+    }
+  }
+
+  private String list() {
+    StringBuilder sb = new StringBuilder("[\n");
+    synchronized (jobs) {
+      int i = 0;
+      for (Job job : jobs.values()) {
+        sb.append("  ").append(job.toJson()).append(++i < jobs.size() ? ",\n" : "\n");
+      }
+    }
+    return sb.append("]\n").toString();
+  }
+
+  private String details(Job job) {
+    SftpSquid t = job.transfer;
+    String json = job.toJson();
+    if (t == null) {
+      return json + "\n";
+    }
+    String metrics = t.getMetrics().toJson(job.state.equals("done")).trim();
+    return json.substring(0, json.length() - 1) + ", \"metrics\": " + metrics + "}\n";
+  }
+
+  private String status() {
+    int queued = 0, running = 0, done = 0, failed = 0;
+    long bytes = 0;
+    synchronized (jobs) {
+      for (Job job : jobs.values()) {
+        if (job.state.equals("queued")) {
+          queued++;
+        } else if (job.state.equals("running")) {
+          running++;
+        } else if (job.state.equals("done")) {
+          done++;
+        } else {
+          failed++;
+        }
+        bytes += job.bytes();
+      }
+    }
+    double seconds = (System.currentTimeMillis() - startMillis) / 1000.0;
+    StringBuilder sb = new StringBuilder("{\n");
+    sb.append("  \"uptime_seconds\": ").append(Metrics.number(seconds)).append(",\n");
+    sb.append("  \"jobs\": {\"queued\": ").append(queued).append(", \"running\": ").append(running)
+      .append(", \"done\": ").append(done).append(", \"failed\": ").append(failed).append("},\n");
+    sb.append("  \"bytes\": ").append(bytes).append(",\n");
+    sb.append("  \"hosts\": [");
+    int i = 0;
+    for (Map.Entry<String, int[]> e : pool.usage().entrySet()) {
+      int[] u = e.getValue();
+      sb.append(i++ > 0 ? ",\n" : "\n").append("    {\"host\": ").append(Metrics.quote(e.getKey()))
+        .append(", \"connections\": ").append(u[0])
+        .append(", \"sessions\": ").append(u[1])
+        .append(", \"idle_sessions\": ").append(u[2]).append("}");
+    }
+    sb.append(i > 0 ? "\n  ]\n" : "]\n");
+    return sb.append("}\n").toString();
+  }
+
+  private static String error(String message) {
+    return "{\"error\": " + Metrics.quote(message) + "}\n";
+  }
+
+  private static void reply(HttpExchange exchange, int code, String json) throws IOException {
+    byte[] body = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What we know about one destination: attributes of the files, fetched one
+ * directory listing at a time instead of one stat per file, and the
+ * directories that we know exist, also only the most recently used.
+ *
+ * <p>Only the most recently used listings are kept. In listing order the
+ * files of a directory are copied together, so older listings are rarely
+ * needed again. In size order the files come from all over the tree and a
+ * directory is needed again as long as any of its files wait in the queue,
+ * so then more listings are kept, see forQueue().
+ */
+class DestinationIndex {
+  /** Number of directory listings to keep in listing order */
+  static final int MAX_DIRS = 1024;
+  /** Number of known directories to remember, forgetting one only costs a mkdirs */
+  static final int MAX_KNOWN_DIRS = 64 * 1024;
+
+  private Logger log = Logger.getLogger(getClass());
+  private Map<String, Map<String, FileAttributes>> dirs
+    = new LinkedHashMap<String, Map<String, FileAttributes>>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Map<String, FileAttributes>> eldest) {
+        return size() > maxDirs;
+      }
+    };
+  /** Number of directory listings to keep */
+  final int maxDirs;
+  /** Directories that we have created or found, the most recently used */
+  private Map<String, Boolean> knownDirs = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > MAX_KNOWN_DIRS;
+      }
+    };
+  /** Where to add the time spent waiting on listings */
+  private AtomicLong listNanos;
+
+  /**
+   * @param maxDirs number of directory listings to keep
+   * @param listNanos where to add the time spent waiting on listings
+   */
+  DestinationIndex(int maxDirs, AtomicLong listNanos) {
+    this.maxDirs = maxDirs;
+    this.listNanos = listNanos;
+  }
+
+  /**
+   * An index sized for the queue the files come from. In size order the
+   * files in memory can be in as many directories as the queue holds files,
+   * those spilled to disk are listed again when they come back.
+   *
+   * @param queueMemory the number of files the queue keeps in memory
+   * @param orderBySize whether the queue gives the largest files first
+   */
+  static DestinationIndex forQueue(int queueMemory, boolean orderBySize, AtomicLong listNanos) {
+    return new DestinationIndex(orderBySize ? Math.max(MAX_DIRS, queueMemory) : MAX_DIRS, listNanos);
+  }
+
+  /**
+   * Whether the directory is known to exist
+   */
+  public boolean isKnownDir(String dir) {
+    synchronized (knownDirs) {
+      return knownDirs.get(dir) != null;
+    }
+  }
+
+  /**
+   * Remember that a directory, and so all its parents, exist
+   */
+  public void addKnownDir(String dir) {
+    synchronized (knownDirs) {
+      while (dir.length() > 0 && knownDirs.put(dir, Boolean.TRUE) == null) {
+        int slash = dir.lastIndexOf('/');
+        dir = slash > 0 ? dir.substring(0, slash) : "";
+      }
+    }
+  }
+
+  /**
+   * Get the attributes of a file on the destination.
+   *
+   * @param c SFTP session to the destination, used if the directory has not
+   *          been listed yet
+   * @param path the file
+   * @return the attributes or null if the file does not exist
+   */
+  public FileAttributes stat(SFTPClient c, String path) throws IOException {
+    int slash = path.lastIndexOf('/');
+    String dir  = slash == -1 ? "." : path.substring(0, slash);
+    String name = path.substring(slash + 1);
+    if (dir.length() == 0) {
+      dir = "/";
+    }
+
+    Map<String, FileAttributes> listing;
+    synchronized (dirs) {
+      listing = dirs.get(dir);
+    }
+    if (listing == null) {
+      // Two workers might list the same directory, that is cheaper than
+      // making one wait for the other
+      listing = list(c, dir);
+      synchronized (dirs) {
+        dirs.put(dir, listing);
+      }
+    }
+    return listing.get(name);
+  }
+
+  /**
+   * List a directory, empty if it can't be listed
+   */
+  Map<String, FileAttributes> list(SFTPClient c, String dir) throws IOException {
+    log.debug("Listing destination " + dir);
+    Map<String, FileAttributes> listing = new HashMap<String, FileAttributes>();
+    long start = System.nanoTime();
+    try {
+      for (RemoteResourceInfo entry : c.ls(dir)) {
+        listing.put(entry.getName(), entry.getAttributes());
+      }
+    } catch (SFTPException e) {
+      log.debug("Could not list " + dir + ", treating as empty: " + e);
+    } finally {
+      listNanos.addAndGet(System.nanoTime() - start);
+    }
+    return listing;
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.common.StreamCopier;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy one stream to several outputs, reading it only once.
+ *
+ * <p>The calling thread reads into a fixed ring of buffers and each output
+ * has its own writer thread with a queue as long as the ring. A buffer goes
+ * back to the ring when every output has written it, so the outputs can be
+ * at most one ring apart. If an output's queue stays full for longer than the
+ * lag timeout, or writing to it fails, it is dropped and the others continue
+ * without it. The caller has to copy the file to the dropped outputs later.
+ *
+ * <p>If a digest is given, the buffers are also queued to a hashing thread,
+ * as in PipelinedCopier, so hashing doesn't hold back the reading. The
+ * hasher is never dropped, a buffer only goes back to the ring when it has
+ * been hashed.
+ *
+ * <p>The ring buffers come from a BufferPool, as in PipelinedCopier. When
+ * reading fails every writer is told to stop, and the ring goes back to the
+ * pool when they have.
+ */
+class FanOutCopier {
+  /** Writer threads are reused between files */
+  private static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "sftpsquid-fanout");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private Logger log = Logger.getLogger(getClass());
+  private InputStream in;
+  private List<OutputStream> outs;
+  private int bufSize = 32768;
+  private int ringSize = 8;
+  private long lagTimeoutMs = 30000;
+  private StreamCopier.Listener listener;
+  private MessageDigest digest;
+  private BufferPool pool = BufferPool.SHARED;
+
+  /** Tells a writer that there is nothing more to write */
+  private static final Chunk END = new Chunk(new byte[0]);
+
+  /** One buffer in the ring, shared by all outputs */
+  private static class Chunk {
+    byte[] buf;
+    int len = 0;
+    /** Outputs that still have to write this buffer */
+    AtomicInteger refs = new AtomicInteger(0);
+
+    Chunk(byte[] buf) {
+      this.buf = buf;
+    }
+  }
+
+  /** One output with its queue and writer thread */
+  private class Output implements Runnable {
+    int index;
+    OutputStream out;
+    BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(ringSize + 1);
+    volatile boolean dropped = false;
+    Future<?> writer;
+    BlockingQueue<Chunk> free;
+    CountDownLatch writersDone;
+
+    Output(int index, OutputStream out, BlockingQueue<Chunk> free, CountDownLatch writersDone) {
+      this.index = index;
+      this.out   = out;
+      this.free  = free;
+      this.writersDone = writersDone;
+    }
+
+    /**
+     * Write until the END chunk. A dropped output keeps taking chunks from
+     * its queue, without writing them, so the buffers go back to the ring.
+     */
+    public void run() {
+      try {
+        while (true) {
+          Chunk c = queue.take();
+          if (c == END) {
+            if (!dropped) {
+              out.flush();
+            }
+            return;
+          }
+          if (!dropped) {
+            try {
+              out.write(c.buf, 0, c.len);
+            } catch (IOException e) {
+              log.debug("Output " + index + " failed: " + e);
+              dropped = true;
+            }
+          }
+          release(c, free);
+        }
+      } catch (IOException e) {
+        log.debug("Output " + index + " failed to flush: " + e);
+        dropped = true;
+      } catch (InterruptedException e) {
+        dropped = true;
+      } finally {
+        writersDone.countDown();
+      }
+    }
+  }
+
+  FanOutCopier(InputStream in, List<OutputStream> outs) {
+    this.in   = in;
+    this.outs = outs;
+  }
+
+  public FanOutCopier bufSize(int bufSize) {
+    this.bufSize = bufSize;
+    return this;
+  }
+
+  public FanOutCopier ringSize(int ringSize) {
+    this.ringSize = ringSize;
+    return this;
+  }
+
+  /**
+   * How long a slow output may hold back the others before it is dropped
+   */
+  public FanOutCopier lagTimeout(long ms) {
+    this.lagTimeoutMs = ms;
+    return this;
+  }
+
+  public FanOutCopier listener(StreamCopier.Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Hash everything that is read, on the reading thread
+   */
+  public FanOutCopier digest(MessageDigest digest) {
+    this.digest = digest;
+    return this;
+  }
+
+  /**
+   * Where the ring buffers come from
+   */
+  public FanOutCopier bufferPool(BufferPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  private static void release(Chunk c, BlockingQueue<Chunk> free) {
+    if (c.refs.decrementAndGet() == 0) {
+      free.offer(c);
+    }
+  }
+
+  /**
+   * Copy everything from the input to all outputs.
+   *
+   * @return the indexes, in the output list, of the outputs that were
+   *         dropped and did not get the whole file
+   */
+  public List<Integer> copy() throws IOException {
+    BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(ringSize);
+    List<Chunk> ring = new ArrayList<Chunk>(ringSize);
+    for (int i=0; i<ringSize; i++) {
+      ring.add(new Chunk(pool.take(bufSize)));
+    }
+    free.addAll(ring);
+    CountDownLatch writersDone = new CountDownLatch(outs.size() + (digest != null ? 1 : 0));
+    List<Output> active = new ArrayList<Output>();
+    for (int i=0; i<outs.size(); i++) {
+      Output o = new Output(i, outs.get(i), free, writersDone);
+      o.writer = writers.submit(o);
+      active.add(o);
+    }
+    List<Output> all = new ArrayList<Output>(active);
+    Output hasher = null;
+    if (digest != null) {
+      hasher = new Output(-1, digestStream(digest), free, writersDone);
+      hasher.writer = writers.submit(hasher);
+    }
+
+    boolean finished = false;
+    try {
+      long transferred = 0;
+      boolean eof = false;
+      while (!eof && !active.isEmpty()) {
+        Chunk c = free.take();
+        c.len = 0;
+        while (c.len < bufSize && !eof) {
+          int r = in.read(c.buf, c.len, bufSize - c.len);
+          if (r == -1) {
+            eof = true;
+          } else {
+            c.len += r;
+          }
+        }
+        if (c.len == 0) {
+          free.put(c);
+          break;
+        }
+        // Hold one reference while handing out, so the chunk is not freed early
+        c.refs.set(active.size() + (hasher != null ? 2 : 1));
+        if (hasher != null) {
+          hasher.queue.put(c);
+        }
+        // Backwards, so dropping an output doesn't skip the next one
+        for (int i=active.size()-1; i>=0; i--) {
+          Output o = active.get(i);
+          if (o.dropped || !o.queue.offer(c, lagTimeoutMs, TimeUnit.MILLISECONDS)) {
+            log.debug("Dropping output " + o.index + ", it is too slow or failed");
+            drop(o, active);
+            release(c, free);
+          }
+        }
+        release(c, free);
+
+        transferred += c.len;
+        if (listener != null) {
+          listener.reportProgress(transferred);
+        }
+      }
+
+      // Dropped outputs are not waited for, they might be stuck on a dead
+      // connection
+      for (Output o : active) {
+        o.queue.put(END);
+      }
+      for (Output o : active) {
+        try {
+          o.writer.get();
+        } catch (ExecutionException e) {
+          o.dropped = true;
+        }
+      }
+      if (hasher != null) {
+        hasher.queue.put(END);
+        try {
+          hasher.writer.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Hashing failed: " + e.getCause());
+        }
+      }
+      finished = true;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while copying");
+    } finally {
+      if (!finished) {
+        // Reading failed, the writers throw away what they have queued
+        for (Output o : all) {
+          o.dropped = true;
+          o.queue.offer(END); // There is always room, a queue is longer than the ring
+        }
+        if (hasher != null) {
+          hasher.dropped = true;
+          hasher.queue.offer(END);
+        }
+      }
+      giveBack(ring, writersDone, finished ? 0 : 1000);
+    }
+
+    List<Integer> dropped = new ArrayList<Integer>();
+    for (Output o : all) {
+      if (o.dropped) {
+        dropped.add(o.index);
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * An output that only updates the digest
+   */
+  private static OutputStream digestStream(final MessageDigest md) {
+    return new OutputStream() {
+      public void write(int b) {
+        md.update((byte) b);
+      }
+
+      public void write(byte[] buf, int off, int len) {
+        md.update(buf, off, len);
+      }
+    };
+  }
+
+  /**
+   * Give the ring to the pool when all writers have stopped. A dropped
+   * writer can still be stuck in a write on a dead connection, then the
+   * ring is left to the garbage collector instead.
+   *
+   * @param waitMs how long to wait for the writers
+   */
+  private void giveBack(List<Chunk> ring, CountDownLatch writersDone, long waitMs) {
+    try {
+      if (!writersDone.await(waitMs, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    for (Chunk c : ring) {
+      pool.give(c.buf);
+    }
+  }
+
+  /**
+   * Stop an output, and give back the buffers it still had queued. The
+   * writer is not interrupted, that could leave the SFTP session in a bad
+   * state, it stops by itself after its current write.
+   */
+  private void drop(Output o, List<Output> active) {
+    o.dropped = true;
+    active.remove(o);
+    List<Chunk> left = new ArrayList<Chunk>();
+    o.queue.drainTo(left);
+    for (Chunk c : left) {
+      release(c, o.free);
+    }
+    o.queue.offer(END);
+  }
+}
@@ -29,6 +29,8 @@ class HostFileInfo {
   public String file;
   /** The port to use when connecting, default 22 */
   public int port = 22;
+  /** Password asked for before connecting, only kept in memory */
+  public char[] password;
 
   /**
    * Create a new object by parsing a string.
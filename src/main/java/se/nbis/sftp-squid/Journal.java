@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local record of what has been transferred, so an aborted run can resume.
+ *
+ * <p>The journal is a text file with one tab separated line per event:
+ *
+ * <pre>
+ *   done     &lt;size&gt;   &lt;destination&gt;
+ *   progress &lt;start&gt;  &lt;confirmed&gt; &lt;destination&gt;
+ * </pre>
+ *
+ * <p>A progress line says that the bytes from start up to confirmed of the
+ * range starting at start have been acknowledged by the destination server.
+ * Later lines override earlier ones.
+ *
+ * <p>Only the files an earlier run finished are kept in memory, for skipping
+ * them with --resume. The files this run finishes are only written to the
+ * file, so the memory does not grow with the number of files, and progress
+ * is forgotten when its file is done.
+ *
+ * <p>The file is flushed at most once a second. What a crash loses is only
+ * copied again on resume, since the lines only ever say that more is done.
+ */
+class Journal {
+  /** Longest time a line waits in the buffer before it is written */
+  static final long FLUSH_INTERVAL_MS = 1000;
+
+  private Logger log = Logger.getLogger(getClass());
+  private File file;
+  private Writer out;
+  private long lastFlush = 0;
+  /** Size of the files an earlier run finished, by destination path */
+  private Map<String, Long> done = new HashMap<String, Long>();
+  /** Confirmed offset by range start, by destination path */
+  private Map<String, Map<Long, Long>> progress = new HashMap<String, Map<Long, Long>>();
+
+  /**
+   * Open a journal.
+   *
+   * @param file where the journal is kept
+   * @param resume read the old journal, otherwise start over
+   */
+  Journal(File file, boolean resume) throws IOException {
+    this.file = file;
+    if (resume && file.exists()) {
+      load();
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory for journal " + file);
+    }
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, resume), "UTF-8"));
+  }
+
+  private void load() throws IOException {
+    log.debug("Loading journal " + file);
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] parts = line.split("\t", 4);
+        try {
+          if (parts[0].equals("done") && parts.length == 3) {
+            done.put(parts[2], Long.valueOf(parts[1]));
+          } else if (parts[0].equals("progress") && parts.length == 4) {
+            rangesOf(parts[3]).put(Long.valueOf(parts[1]), Long.valueOf(parts[2]));
+          }
+        } catch (NumberFormatException e) {
+          log.debug("Ignoring broken journal line: " + line); // Probably cut off by a crash
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private Map<Long, Long> rangesOf(String destination) {
+    Map<Long, Long> ranges = progress.get(destination);
+    if (ranges == null) {
+      ranges = new HashMap<Long, Long>();
+      progress.put(destination, ranges);
+    }
+    return ranges;
+  }
+
+  /**
+   * Whether an earlier run transferred the file completely
+   *
+   * @param size the size of the source file, -1 if not known
+   */
+  public synchronized boolean isDone(String destination, long size) {
+    Long doneSize = done.get(destination);
+    return doneSize != null && (size == -1 || doneSize == size);
+  }
+
+  /**
+   * Whether part of the file has been written by an earlier run
+   */
+  public synchronized boolean hasProgress(String destination) {
+    return progress.containsKey(destination);
+  }
+
+  /**
+   * Where to continue the range starting at start
+   */
+  public synchronized long confirmed(String destination, long start) {
+    Map<Long, Long> ranges = progress.get(destination);
+    if (ranges == null || !ranges.containsKey(start)) {
+      return start;
+    }
+    return ranges.get(start);
+  }
+
+  /**
+   * Record that the destination has acknowledged a range up to confirmed
+   */
+  public synchronized void progress(String destination, long start, long confirmed) throws IOException {
+    rangesOf(destination).put(start, confirmed);
+    write("progress\t" + start + "\t" + confirmed + "\t" + destination);
+  }
+
+  /**
+   * Record that a file is completely transferred
+   */
+  public synchronized void done(String destination, long size) throws IOException {
+    progress.remove(destination);
+    write("done\t" + size + "\t" + destination);
+  }
+
+  private void write(String line) throws IOException {
+    out.write(line);
+    out.write('\n');
+    long now = System.currentTimeMillis();
+    if (now - lastFlush >= FLUSH_INTERVAL_MS) {
+      out.flush();
+      lastFlush = now;
+    }
+  }
+
+  /**
+   * Close the journal, keeping the file for a later resume
+   */
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Close and remove the journal, used when everything was transferred
+   */
+  public synchronized void delete() throws IOException {
+    out.close();
+    if (!file.delete()) {
+      log.debug("Could not remove journal " + file);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Local list of SHA-256 checksums of the transferred files, in the same
+ * format as sha256sum so it can be checked with "sha256sum -c" on the
+ * destination.
+ */
+class Manifest {
+  private Writer out;
+
+  Manifest(String file) throws IOException {
+    out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+  }
+
+  /**
+   * Add the checksum of one file
+   */
+  public synchronized void add(String path, byte[] digest) throws IOException {
+    out.write(toHex(digest));
+    out.write("  ");
+    out.write(path);
+    out.write('\n');
+  }
+
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
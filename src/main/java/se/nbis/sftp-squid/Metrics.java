@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.transport.NegotiatedAlgorithms;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for a whole run, for --metrics-json and --metrics-prom.
+ *
+ * <p>Host number 0 is the source and the others are the destinations, as on
+ * the command line. The wait times and totals come from the CopyStats.
+ *
+ * <p>The JSON summary is written once at exit. The Prometheus text file is
+ * rewritten periodically while the transfer runs, through a temporary file
+ * that is renamed so a collector never sees half a file.
+ */
+class Metrics {
+  private Logger log = Logger.getLogger(getClass());
+  private String[] hosts;
+  private CopyStats stats;
+  private long startNanos = System.nanoTime();
+  private Thread exporter;
+
+  /** Bytes read from the source or written to a destination, by host number */
+  public AtomicLong[] hostBytes;
+  /** Files read from the source or written to a destination, by host number */
+  public AtomicLong[] hostFiles;
+  /** Time spent making TCP connections and the SSH handshake */
+  public AtomicLong connectNanos = new AtomicLong(0);
+  /** Time spent authenticating, including waiting for the user */
+  public AtomicLong authNanos = new AtomicLong(0);
+  /** Time spent waiting on directory listings, summed over all threads */
+  public AtomicLong listNanos = new AtomicLong(0);
+  /** Bytes the source server copied to itself, they are not in hostBytes */
+  public AtomicLong serverCopiedBytes = new AtomicLong(0);
+  /** Files that were tried again after a connection broke */
+  public AtomicLong retries = new AtomicLong(0);
+  /** Files --verify could not check or --manifest could not list, no server could hash them */
+  public AtomicLong uncheckedFiles = new AtomicLong(0);
+  /** How long each file took, from open to done */
+  public Histogram fileLatency = new Histogram();
+  /** The negotiated cipher and MAC, by user and host */
+  private ConcurrentHashMap<String, String> algorithms = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Counts of values in fixed buckets, like a Prometheus histogram
+   */
+  static class Histogram {
+    /** Upper bounds of the buckets, in seconds */
+    static final double[] BOUNDS = {
+      0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600
+    };
+
+    /** Count per bucket, the last one is for everything larger */
+    private AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private AtomicLong count = new AtomicLong(0);
+    private AtomicLong sumNanos = new AtomicLong(0);
+
+    public void add(long nanos) {
+      double seconds = nanos / 1e9;
+      int i = 0;
+      while (i < BOUNDS.length && seconds > BOUNDS[i]) {
+        i++;
+      }
+      counts.incrementAndGet(i);
+      count.incrementAndGet();
+      sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Number of values up to and including bucket i
+     */
+    public long cumulative(int i) {
+      long n = 0;
+      for (int j=0; j<=i; j++) {
+        n += counts.get(j);
+      }
+      return n;
+    }
+  }
+
+  Metrics(HostFileInfo[] hfs, CopyStats stats) {
+    this.stats = stats;
+    hosts     = new String[hfs.length];
+    hostBytes = new AtomicLong[hfs.length];
+    hostFiles = new AtomicLong[hfs.length];
+    for (int i=0; i<hfs.length; i++) {
+      hosts[i]     = hfs[i].userHostSpec();
+      hostBytes[i] = new AtomicLong(0);
+      hostFiles[i] = new AtomicLong(0);
+    }
+  }
+
+  /**
+   * A file or part of one was copied from the source to destination d
+   */
+  public void copied(int d, long bytes) {
+    hostBytes[0].addAndGet(bytes);
+    hostBytes[d].addAndGet(bytes);
+  }
+
+  /**
+   * A file was written in full to destination d
+   *
+   * @param nanos how long it took, -1 if not known
+   */
+  public void fileDone(int d, long nanos) {
+    hostFiles[d].incrementAndGet();
+    if (nanos >= 0) {
+      fileLatency.add(nanos);
+    }
+  }
+
+  /**
+   * A file was read in full from the source
+   */
+  public void fileRead() {
+    hostFiles[0].incrementAndGet();
+  }
+
+  /**
+   * Remember what a connection negotiated
+   */
+  public void algorithms(String userHostSpec, NegotiatedAlgorithms negotiated) {
+    String cipher = negotiated.getClient2ServerCipherAlgorithm();
+    String mac = negotiated.getClient2ServerMACAlgorithm();
+    // Ciphers with built in authentication don't use the MAC
+    if (cipher.contains("gcm") || cipher.contains("poly1305")) {
+      mac = "implicit";
+    }
+    algorithms.putIfAbsent(userHostSpec, cipher + " " + mac + " " + negotiated.getKeyExchangeAlgorithm());
+  }
+
+  /**
+   * The cipher, MAC and key exchange of the first connection to a host
+   */
+  public String algorithms(String userHostSpec) {
+    String a = algorithms.get(userHostSpec);
+    return a != null ? a : "unknown";
+  }
+
+  private double elapsedSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  private static String role(int i) {
+    return i == 0 ? "source" : "destination";
+  }
+
+  static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  static String number(double value) {
+    return String.format(Locale.ROOT, "%.6f", value);
+  }
+
+  /**
+   * Everything as a JSON object
+   *
+   * @param success whether the transfer finished
+   */
+  public String toJson(boolean success) {
+    double elapsed = elapsedSeconds();
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"success\": ").append(success).append(",\n");
+    sb.append("  \"elapsed_seconds\": ").append(number(elapsed)).append(",\n");
+    sb.append("  \"bytes\": ").append(stats.bytes.get()).append(",\n");
+    sb.append("  \"skipped_files\": ").append(stats.skippedFiles.get()).append(",\n");
+    sb.append("  \"retries\": ").append(retries.get()).append(",\n");
+    sb.append("  \"unchecked_files\": ").append(uncheckedFiles.get()).append(",\n");
+    sb.append("  \"server_copied_bytes\": ").append(serverCopiedBytes.get()).append(",\n");
+    sb.append("  \"wait_seconds\": {\"source\": ").append(number(stats.sourceWaitNanos.get() / 1e9))
+      .append(", \"destination\": ").append(number(stats.destinationWaitNanos.get() / 1e9)).append("},\n");
+    sb.append("  \"setup_seconds\": {\"connect\": ").append(number(connectNanos.get() / 1e9))
+      .append(", \"authentication\": ").append(number(authNanos.get() / 1e9))
+      .append(", \"listing\": ").append(number(listNanos.get() / 1e9)).append("},\n");
+    sb.append("  \"hosts\": [\n");
+    for (int i=0; i<hosts.length; i++) {
+      long bytes = hostBytes[i].get();
+      long files = hostFiles[i].get();
+      sb.append("    {\"host\": ").append(quote(hosts[i]))
+        .append(", \"role\": ").append(quote(role(i)))
+        .append(", \"algorithms\": ").append(quote(algorithms(hosts[i])))
+        .append(", \"bytes\": ").append(bytes)
+        .append(", \"files\": ").append(files)
+        .append(", \"bytes_per_second\": ").append(number(elapsed > 0 ? bytes / elapsed : 0))
+        .append(", \"files_per_second\": ").append(number(elapsed > 0 ? files / elapsed : 0))
+        .append(i < hosts.length - 1 ? "},\n" : "}\n");
+    }
+    sb.append("  ],\n");
+    sb.append("  \"file_latency_seconds\": {\"count\": ").append(fileLatency.count.get())
+      .append(", \"sum\": ").append(number(fileLatency.sumNanos.get() / 1e9))
+      .append(", \"buckets\": [");
+    for (int i=0; i<=Histogram.BOUNDS.length; i++) {
+      String le = i < Histogram.BOUNDS.length ? number(Histogram.BOUNDS[i]) : "\"+Inf\"";
+      sb.append(i > 0 ? ", " : "").append("{\"le\": ").append(le)
+        .append(", \"count\": ").append(fileLatency.cumulative(i)).append("}");
+    }
+    sb.append("]}\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Everything in the Prometheus text format
+   */
+  public String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# HELP sftpsquid_elapsed_seconds Time since the transfer started\n");
+    sb.append("# TYPE sftpsquid_elapsed_seconds gauge\n");
+    sb.append("sftpsquid_elapsed_seconds ").append(number(elapsedSeconds())).append("\n");
+
+    sb.append("# HELP sftpsquid_bytes_total Bytes read from the source or written to a destination\n");
+    sb.append("# TYPE sftpsquid_bytes_total counter\n");
+    for (int i=0; i<hosts.length; i++) {
+      sb.append("sftpsquid_bytes_total").append(labels(i)).append(" ").append(hostBytes[i].get()).append("\n");
+    }
+    sb.append("# HELP sftpsquid_files_total Files read from the source or written to a destination\n");
+    sb.append("# TYPE sftpsquid_files_total counter\n");
+    for (int i=0; i<hosts.length; i++) {
+      sb.append("sftpsquid_files_total").append(labels(i)).append(" ").append(hostFiles[i].get()).append("\n");
+    }
+    sb.append("# HELP sftpsquid_skipped_files_total Files that were already up to date\n");
+    sb.append("# TYPE sftpsquid_skipped_files_total counter\n");
+    sb.append("sftpsquid_skipped_files_total ").append(stats.skippedFiles.get()).append("\n");
+    sb.append("# HELP sftpsquid_retries_total Files that were tried again after a connection broke\n");
+    sb.append("# TYPE sftpsquid_retries_total counter\n");
+    sb.append("sftpsquid_retries_total ").append(retries.get()).append("\n");
+    sb.append("# HELP sftpsquid_unchecked_files_total Files that could not be verified or added to the manifest\n");
+    sb.append("# TYPE sftpsquid_unchecked_files_total counter\n");
+    sb.append("sftpsquid_unchecked_files_total ").append(uncheckedFiles.get()).append("\n");
+    sb.append("# HELP sftpsquid_server_copied_bytes_total Bytes the server copied to itself\n");
+    sb.append("# TYPE sftpsquid_server_copied_bytes_total counter\n");
+    sb.append("sftpsquid_server_copied_bytes_total ").append(serverCopiedBytes.get()).append("\n");
+
+    sb.append("# HELP sftpsquid_wait_seconds_total Time copies waited on each side, summed over all workers\n");
+    sb.append("# TYPE sftpsquid_wait_seconds_total counter\n");
+    sb.append("sftpsquid_wait_seconds_total{side=\"source\"} ").append(number(stats.sourceWaitNanos.get() / 1e9)).append("\n");
+    sb.append("sftpsquid_wait_seconds_total{side=\"destination\"} ").append(number(stats.destinationWaitNanos.get() / 1e9)).append("\n");
+
+    sb.append("# HELP sftpsquid_setup_seconds_total Time spent connecting, authenticating and listing\n");
+    sb.append("# TYPE sftpsquid_setup_seconds_total counter\n");
+    sb.append("sftpsquid_setup_seconds_total{phase=\"connect\"} ").append(number(connectNanos.get() / 1e9)).append("\n");
+    sb.append("sftpsquid_setup_seconds_total{phase=\"authentication\"} ").append(number(authNanos.get() / 1e9)).append("\n");
+    sb.append("sftpsquid_setup_seconds_total{phase=\"listing\"} ").append(number(listNanos.get() / 1e9)).append("\n");
+
+    sb.append("# HELP sftpsquid_file_duration_seconds How long each file took to transfer\n");
+    sb.append("# TYPE sftpsquid_file_duration_seconds histogram\n");
+    for (int i=0; i<=Histogram.BOUNDS.length; i++) {
+      String le = i < Histogram.BOUNDS.length ? Double.toString(Histogram.BOUNDS[i]) : "+Inf";
+      sb.append("sftpsquid_file_duration_seconds_bucket{le=\"").append(le).append("\"} ")
+        .append(fileLatency.cumulative(i)).append("\n");
+    }
+    sb.append("sftpsquid_file_duration_seconds_sum ").append(number(fileLatency.sumNanos.get() / 1e9)).append("\n");
+    sb.append("sftpsquid_file_duration_seconds_count ").append(fileLatency.count.get()).append("\n");
+    return sb.toString();
+  }
+
+  private String labels(int i) {
+    String host = hosts[i].replace("\\", "\\\\").replace("\"", "\\\"");
+    return "{host=\"" + host + "\",role=\"" + role(i) + "\",index=\"" + i + "\"}";
+  }
+
+  /**
+   * Write a file through a temporary file, so readers see either the old or
+   * the new content
+   */
+  static void writeAtomically(String file, String content) throws IOException {
+    File target = new File(file);
+    File tmp = new File(target.getPath() + ".tmp");
+    Writer w = new FileWriter(tmp);
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+    if (!tmp.renameTo(target)) {
+      throw new IOException("Could not rename " + tmp + " to " + target);
+    }
+  }
+
+  /**
+   * Rewrite the Prometheus file every interval seconds until stopExport() is
+   * called
+   */
+  public void exportPeriodically(final String file, final int interval) {
+    exporter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(interval * 1000L);
+            try {
+              writeAtomically(file, toPrometheus());
+            } catch (IOException e) {
+              log.warn("Could not write metrics to " + file + ": " + e);
+            }
+          }
+        } catch (InterruptedException e) {
+          // Done
+        }
+      }
+    }, "sftpsquid-metrics");
+    exporter.setDaemon(true);
+    exporter.start();
+  }
+
+  /**
+   * Stop rewriting the Prometheus file, and wait for a write that is under
+   * way so it can't replace the final one
+   */
+  public void stopExport() {
+    if (exporter == null) {
+      return;
+    }
+    exporter.interrupt();
+    try {
+      exporter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    exporter = null;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options, everything that is not an option is kept as a host
+ * argument.
+ */
+class Options {
+  /** Number of files to transfer at the same time */
+  public int parallel = 1;
+  /** Number of files in flight on each pair of SFTP sessions */
+  public int inFlight = 1;
+  /** Files larger than this are split in ranges over all workers, 0 is off */
+  public long chunkThreshold = 0;
+  /** Split files that are a large part of what is left, see SftpSquid.shouldSplit() */
+  public boolean autoSplit = false;
+  /** Transfer the largest files first instead of in the order they are found */
+  public boolean orderBySize = true;
+  /** Print where the copies spent their time when done */
+  public boolean stats = false;
+  /** Skip files that an earlier run finished and continue unfinished ones */
+  public boolean resume = false;
+  /** Where to keep the journal, null for the default place */
+  public String journal;
+  /** Only transfer files that differ in size or modification time */
+  public boolean sync = false;
+  /** Give the destination files the modification times and permissions of the sources */
+  public boolean preserve = false;
+  /** Let the servers hash existing files and only transfer changed blocks */
+  public boolean checksum = false;
+  /** Size of the blocks that are hashed for --checksum */
+  public int checksumBlock = 8 * 1024 * 1024;
+  /** Compare a hash of the copied bytes with what the destination has */
+  public boolean verify = false;
+  /** Where to write the checksums of the copied files, null for nowhere */
+  public String manifest;
+  /** Seconds a slow destination may hold back the others when fanning out */
+  public int lagTimeout = 30;
+  /** Bytes per second read from the source, 0 for no limit */
+  public long limit = 0;
+  /** Bytes per second to and from a host, by host name */
+  public Map<String, Long> hostLimits = new LinkedHashMap<String, Long>();
+  /** A file with limits that is read again when it changes */
+  public String limitFile;
+  /** Where to write a JSON summary at exit, null for nowhere */
+  public String metricsJson;
+  /** Where to keep metrics in the Prometheus text format, null for nowhere */
+  public String metricsProm;
+  /** Seconds between updates of the Prometheus file */
+  public int metricsInterval = 10;
+  /** Ciphers to offer, in order, null to measure which are fastest */
+  public String ciphers;
+  /** MACs to offer, in order, null to measure which are fastest */
+  public String macs;
+  /** Files waiting to be transferred that are kept in memory, the rest go to disk */
+  public int queueMemory = TransferQueue.DEFAULT_MEMORY_ITEMS;
+  /** A file with one transfer per line, run over shared connections */
+  public String batch;
+  /** Number of transfers from the batch file to run at the same time */
+  public int jobs = 4;
+  /** Set on the options of each transfer in a batch or the daemon, not a command line option */
+  public boolean batchJob = false;
+  /** Port to take jobs on, on localhost, 0 when not running as a daemon */
+  public int daemon = 0;
+  /** Seconds an unused session or connection is kept open by the daemon */
+  public int idleTimeout = 600;
+  /** Seconds between keepalive messages on every connection, 0 for none */
+  public int keepAlive = 30;
+  /** Times a file is tried again after its connection broke */
+  public int retries = 5;
+  /** The host arguments, in the order they were given */
+  public List<String> hosts = new ArrayList<String>();
+  /** The command line without the host arguments, for withArgs() */
+  private List<String> optionArgs = new ArrayList<String>();
+
+  /**
+   * Parse the command line.
+   *
+   * @param args the args array from the main method
+   */
+  Options(String[] args) throws IOException {
+    for (int i=0; i < args.length; i++) {
+      String arg = args[i];
+      int start = i;
+      if (arg.equals("--parallel")) {
+        parallel = intArg(args, ++i, arg);
+        if (parallel < 1) {
+          throw new IOException("--parallel must be at least 1");
+        }
+      } else if (arg.equals("--in-flight")) {
+        inFlight = intArg(args, ++i, arg);
+        if (inFlight < 1) {
+          throw new IOException("--in-flight must be at least 1");
+        }
+      } else if (arg.equals("--chunk-threshold")) {
+        if (i + 1 < args.length && args[i + 1].equals("auto")) {
+          autoSplit = true;
+          i++;
+        } else {
+          chunkThreshold = sizeArg(args, ++i, arg);
+        }
+      } else if (arg.equals("--order")) {
+        String order = stringArg(args, ++i, arg);
+        if (order.equals("size")) {
+          orderBySize = true;
+        } else if (order.equals("listing")) {
+          orderBySize = false;
+        } else {
+          throw new IOException("--order must be size or listing, got '" + order + "'");
+        }
+      } else if (arg.equals("--stats")) {
+        stats = true;
+      } else if (arg.equals("--resume")) {
+        resume = true;
+      } else if (arg.equals("--sync")) {
+        sync = true;
+      } else if (arg.equals("--preserve")) {
+        preserve = true;
+      } else if (arg.equals("--checksum")) {
+        checksum = true;
+      } else if (arg.equals("--checksum-block")) {
+        long size = sizeArg(args, ++i, arg);
+        if (size < 1 || size > Integer.MAX_VALUE) {
+          throw new IOException("--checksum-block must be between 1 byte and 2G");
+        }
+        checksumBlock = (int) size;
+      } else if (arg.equals("--verify")) {
+        verify = true;
+      } else if (arg.equals("--lag-timeout")) {
+        lagTimeout = intArg(args, ++i, arg);
+        if (lagTimeout < 1) {
+          throw new IOException("--lag-timeout must be at least 1");
+        }
+      } else if (arg.equals("--limit")) {
+        limit = sizeArg(args, ++i, arg);
+      } else if (arg.equals("--limit-host")) {
+        String value = stringArg(args, ++i, arg);
+        int eq = value.lastIndexOf('=');
+        if (eq < 1) {
+          throw new IOException("Option " + arg + " needs HOST=RATE, got '" + value + "'");
+        }
+        try {
+          hostLimits.put(value.substring(0, eq), parseSize(value.substring(eq + 1)));
+        } catch (NumberFormatException e) {
+          throw new IOException("Option " + arg + " needs a rate, got '" + value + "'");
+        }
+      } else if (arg.equals("--limit-file")) {
+        limitFile = stringArg(args, ++i, arg);
+      } else if (arg.equals("--metrics-json")) {
+        metricsJson = stringArg(args, ++i, arg);
+      } else if (arg.equals("--metrics-prom")) {
+        metricsProm = stringArg(args, ++i, arg);
+      } else if (arg.equals("--metrics-interval")) {
+        metricsInterval = intArg(args, ++i, arg);
+        if (metricsInterval < 1) {
+          throw new IOException("--metrics-interval must be at least 1");
+        }
+      } else if (arg.equals("--ciphers")) {
+        ciphers = stringArg(args, ++i, arg);
+      } else if (arg.equals("--macs")) {
+        macs = stringArg(args, ++i, arg);
+      } else if (arg.equals("--queue-memory")) {
+        queueMemory = intArg(args, ++i, arg);
+        if (queueMemory < 1) {
+          throw new IOException("--queue-memory must be at least 1");
+        }
+      } else if (arg.equals("--batch")) {
+        batch = stringArg(args, ++i, arg);
+      } else if (arg.equals("--jobs")) {
+        jobs = intArg(args, ++i, arg);
+        if (jobs < 1) {
+          throw new IOException("--jobs must be at least 1");
+        }
+      } else if (arg.equals("--daemon")) {
+        daemon = intArg(args, ++i, arg);
+        if (daemon < 1 || daemon > 65535) {
+          throw new IOException("--daemon needs a port number");
+        }
+      } else if (arg.equals("--idle-timeout")) {
+        idleTimeout = intArg(args, ++i, arg);
+        if (idleTimeout < 1) {
+          throw new IOException("--idle-timeout must be at least 1");
+        }
+      } else if (arg.equals("--keepalive")) {
+        keepAlive = intArg(args, ++i, arg);
+      } else if (arg.equals("--retries")) {
+        retries = intArg(args, ++i, arg);
+      } else if (arg.equals("--journal")) {
+        journal = stringArg(args, ++i, arg);
+      } else if (arg.equals("--manifest")) {
+        manifest = stringArg(args, ++i, arg);
+      } else if (arg.startsWith("--")) {
+        throw new IOException("Unknown option '" + arg + "'");
+      } else {
+        hosts.add(arg);
+        continue;
+      }
+      optionArgs.addAll(Arrays.asList(args).subList(start, i + 1));
+    }
+  }
+
+  /**
+   * Default options, used when constructing SftpSquid objects directly.
+   */
+  Options() {
+  }
+
+  /**
+   * A copy of the options from the command line, without the hosts, with
+   * more arguments added. The copy can be changed without changing these.
+   *
+   * @param extra options and hosts, as on the command line
+   */
+  Options withArgs(String[] extra) throws IOException {
+    List<String> args = new ArrayList<String>(optionArgs);
+    args.addAll(Arrays.asList(extra));
+    return new Options(args.toArray(new String[args.size()]));
+  }
+
+  private static String stringArg(String[] args, int i, String option) throws IOException {
+    if (i >= args.length) {
+      throw new IOException("Option " + option + " needs a value");
+    }
+    return args[i];
+  }
+
+  private static int intArg(String[] args, int i, String option) throws IOException {
+    if (i >= args.length) {
+      throw new IOException("Option " + option + " needs a value");
+    }
+    try {
+      return Integer.parseInt(args[i]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Option " + option + " needs a number, got '" + args[i] + "'");
+    }
+  }
+
+  /**
+   * Parse a size in bytes, with an optional K, M, G or T suffix
+   */
+  private static long sizeArg(String[] args, int i, String option) throws IOException {
+    if (i >= args.length) {
+      throw new IOException("Option " + option + " needs a value");
+    }
+    try {
+      return parseSize(args[i]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Option " + option + " needs a size, got '" + args[i] + "'");
+    }
+  }
+
+  /**
+   * Parse a number of bytes, with an optional K, M, G or T suffix
+   */
+  static long parseSize(String value) throws NumberFormatException {
+    value = value.toUpperCase();
+    long multiplier = 1;
+    int unit = value.length() > 1 ? "KMGT".indexOf(value.charAt(value.length() - 1)) : -1;
+    if (unit != -1) {
+      multiplier = 1L << (10 * (unit + 1));
+      value = value.substring(0, value.length() - 1);
+    }
+    long size = Long.parseLong(value);
+    if (size < 0) {
+      throw new NumberFormatException("Negative size");
+    }
+    return size * multiplier;
+  }
+}
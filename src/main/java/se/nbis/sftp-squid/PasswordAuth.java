@@ -18,8 +18,6 @@ package se.nbis.sftpsquid;
 import net.schmizz.sshj.userauth.password.PasswordFinder;
 import net.schmizz.sshj.userauth.password.Resource;
 
-import java.io.Console;
-
 /**
  * Ask the user for passwords
  */
@@ -37,16 +35,17 @@ class PasswordAuth implements PasswordFinder {
     }
 
   /**
-   * Get the password from the user
+   * Get the password given up front, or else from the user
    *
    * @param resource
    */
     @Override
     public char[] reqPassword(Resource<?> resource) {
-        System.out.printf("Password for %s:", hf.userHostSpec());
-        Console cons = System.console();
-        char[] resp = cons.readPassword();
-        return resp;
+        if (hf.password != null) {
+            return hf.password.clone();
+        }
+        hf.password = Prompt.readPassword(String.format("Password for %s:", hf.userHostSpec()));
+        return hf.password.clone();
     }
 
   /**
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.common.StreamCopier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy a stream with the reading and the writing in separate threads.
+ *
+ * <p>The reader fills buffers from a fixed ring and hands them to the writer,
+ * which is the calling thread. When all buffers are full the reader waits, so
+ * a slow destination holds back the source. The time each side spends waiting
+ * on the other tells which side is the bottleneck.
+ *
+ * <p>If a digest is given, written buffers pass through a third thread that
+ * hashes them before they go back to the reader, so hashing slows neither
+ * side down as long as it keeps up with the ring.
+ *
+ * <p>The ring buffers come from a BufferPool and go back to it when the
+ * helper threads are done with them. Nothing is allocated per buffer that
+ * is copied.
+ */
+class PipelinedCopier {
+  /** Reader and hasher threads are reused between files */
+  private static final ExecutorService helpers = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "sftpsquid-copier");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private InputStream in;
+  private OutputStream out;
+  private int bufSize = 32768;
+  private int ringSize = 8;
+  private StreamCopier.Listener listener;
+  private MessageDigest digest;
+  private BufferPool pool = BufferPool.SHARED;
+
+  /** Time the reader waited for a free buffer, the destination is slower */
+  private volatile long readerWaitNanos = 0;
+  /** Time the writer waited for a full buffer, the source is slower */
+  private volatile long writerWaitNanos = 0;
+
+  /** One buffer in the ring */
+  private static class Chunk {
+    byte[] buf;
+    int len = 0;
+    boolean eof = false;
+    IOException error;
+
+    Chunk(byte[] buf) {
+      this.buf = buf;
+    }
+
+    Chunk(IOException error) {
+      this.error = error;
+    }
+  }
+
+  PipelinedCopier(InputStream in, OutputStream out) {
+    this.in  = in;
+    this.out = out;
+  }
+
+  /**
+   * Size of each buffer, should match what fits in one SFTP packet
+   */
+  public PipelinedCopier bufSize(int bufSize) {
+    this.bufSize = bufSize;
+    return this;
+  }
+
+  /**
+   * Number of buffers that can be in flight between reader and writer
+   */
+  public PipelinedCopier ringSize(int ringSize) {
+    this.ringSize = ringSize;
+    return this;
+  }
+
+  /**
+   * Get told about the progress after each written buffer
+   */
+  public PipelinedCopier listener(StreamCopier.Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Hash everything that is copied
+   */
+  public PipelinedCopier digest(MessageDigest digest) {
+    this.digest = digest;
+    return this;
+  }
+
+  /**
+   * Where the ring buffers come from
+   */
+  public PipelinedCopier bufferPool(BufferPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Copy everything from the input to the output.
+   *
+   * @return the number of bytes copied
+   */
+  public long copy() throws IOException {
+    final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(ringSize);
+    // One extra place so the reader can always report an error
+    final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(ringSize + 1);
+    final List<Chunk> ring = new ArrayList<Chunk>(ringSize);
+    for (int i=0; i<ringSize; i++) {
+      ring.add(new Chunk(pool.take(bufSize)));
+    }
+    free.addAll(ring);
+    final int size = bufSize;
+    final MessageDigest md = digest;
+    // The buffers can only go back to the pool when the helpers let go of them
+    final CountDownLatch helpersDone = new CountDownLatch(md != null ? 2 : 1);
+
+    Future<?> reader = helpers.submit(new Runnable() {
+      public void run() {
+        try {
+          boolean eof = false;
+          while (!eof) {
+            long start = System.nanoTime();
+            Chunk c = free.take();
+            readerWaitNanos += System.nanoTime() - start;
+
+            c.len = 0;
+            while (c.len < size && !eof) {
+              int r = in.read(c.buf, c.len, size - c.len);
+              if (r == -1) {
+                eof = true;
+              } else {
+                c.len += r;
+              }
+            }
+            c.eof = eof;
+            full.put(c);
+          }
+        } catch (IOException e) {
+          full.offer(new Chunk(e));
+        } catch (InterruptedException e) {
+          // The writer gave up
+        } finally {
+          helpersDone.countDown();
+        }
+      }
+    });
+
+    final BlockingQueue<Chunk> hashing = new ArrayBlockingQueue<Chunk>(ringSize);
+    Future<?> hasher = null;
+    if (md != null) {
+      hasher = helpers.submit(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              Chunk c = hashing.take();
+              md.update(c.buf, 0, c.len);
+              if (c.eof) {
+                return;
+              }
+              free.put(c);
+            }
+          } catch (InterruptedException e) {
+            // The writer gave up
+          } finally {
+            helpersDone.countDown();
+          }
+        }
+      });
+    }
+
+    long transferred = 0;
+    boolean finished = false;
+    try {
+      while (true) {
+        long start = System.nanoTime();
+        Chunk c = full.take();
+        writerWaitNanos += System.nanoTime() - start;
+
+        if (c.error != null) {
+          throw c.error;
+        }
+        if (c.len > 0) {
+          out.write(c.buf, 0, c.len);
+          transferred += c.len;
+          if (listener != null) {
+            listener.reportProgress(transferred);
+          }
+        }
+        if (md != null) {
+          hashing.put(c);
+        } else if (!c.eof) {
+          free.put(c);
+        }
+        if (c.eof) {
+          break;
+        }
+      }
+      out.flush();
+      if (hasher != null) {
+        hasher.get();
+      }
+      finished = true;
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while copying");
+    } catch (ExecutionException e) {
+      throw new IOException("Hashing failed: " + e.getCause());
+    } finally {
+      reader.cancel(true);
+      if (hasher != null && !finished) {
+        hasher.cancel(true);
+      }
+      giveBack(ring, helpersDone);
+    }
+    return transferred;
+  }
+
+  /**
+   * Give the ring to the pool. A reader stuck on a dead connection may
+   * still write to its buffer, then the ring is left to the garbage
+   * collector instead.
+   */
+  private void giveBack(List<Chunk> ring, CountDownLatch helpersDone) {
+    try {
+      if (!helpersDone.await(1, TimeUnit.SECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    for (Chunk c : ring) {
+      pool.give(c.buf);
+    }
+  }
+
+  /**
+   * Nanoseconds the reader was blocked on the writer
+   */
+  public long getReaderWaitNanos() {
+    return readerWaitNanos;
+  }
+
+  /**
+   * Nanoseconds the writer was blocked on the reader
+   */
+  public long getWriterWaitNanos() {
+    return writerWaitNanos;
+  }
+}
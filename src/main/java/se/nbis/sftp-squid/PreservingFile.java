@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A destination file that can get its attributes set when it is closed.
+ *
+ * <p>The FSETSTAT and the CLOSE are sent one after the other and the answers
+ * are waited for together, so setting the attributes costs no extra round
+ * trip. The server handles the requests on a handle in order, so the times
+ * are set after the last write. sshj keeps the handle of the files it opens
+ * to itself, so the file is opened with our own request, like in ServerCopy.
+ */
+class PreservingFile extends RemoteFile {
+  private FileAttributes onClose;
+
+  private PreservingFile(SFTPEngine engine, String path, byte[] handle) {
+    super(engine, path, handle);
+  }
+
+  /**
+   * Open a file like SFTPClient.open()
+   */
+  static PreservingFile open(SFTPClient c, String path, Set<OpenMode> modes) throws IOException {
+    SFTPEngine engine = c.getSFTPEngine();
+    Request req = engine.newRequest(PacketType.OPEN)
+      .putString(path)
+      .putUInt32(OpenMode.toMask(modes))
+      .putFileAttributes(FileAttributes.EMPTY);
+    Response res = engine.request(req).retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+    if (res.getType() == PacketType.STATUS) {
+      res.ensureStatusPacketIsOK(); // Throws with the status the server gave
+    }
+    res.ensurePacketTypeIs(PacketType.HANDLE);
+    return new PreservingFile(engine, path, res.readStringAsBytes());
+  }
+
+  /**
+   * Set these attributes when the file is closed
+   *
+   * @param attributes the attributes, null to set none
+   */
+  public void setAttributesOnClose(FileAttributes attributes) {
+    onClose = attributes;
+  }
+
+  /**
+   * Close the file, after setting the attributes if there are any. The file
+   * is closed even when the attributes could not be set.
+   */
+  @Override
+  public void close() throws IOException {
+    FileAttributes attributes = onClose;
+    onClose = null;
+    if (attributes == null) {
+      super.close();
+      return;
+    }
+    closeWith(requester, handle, attributes);
+  }
+
+  /**
+   * Set the attributes of an open handle and close it, in one round trip
+   */
+  static void closeWith(SFTPEngine engine, byte[] handle, FileAttributes attributes) throws IOException {
+    Promise<Response, SFTPException> set = engine.request(engine.newRequest(PacketType.FSETSTAT)
+        .putString(handle)
+        .putFileAttributes(attributes));
+    Promise<Response, SFTPException> close = engine.request(engine.newRequest(PacketType.CLOSE)
+        .putString(handle));
+    try {
+      set.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+    } finally {
+      close.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.common.StreamCopier;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the whole transfer, shown to the user.
+ *
+ * <p>The copy threads only add to counters, a timer thread draws the total
+ * bytes, rate, time left, number of files and the rate per host on one line
+ * that is redrawn in place. Finished files are printed above it.
+ *
+ * <p>When stdout is not a terminal only a summary line is printed now and
+ * then, no per file lines.
+ *
+ * <p>The totals grow while the source is still being listed, the time left
+ * is shown once the listing is done.
+ */
+class Progress {
+  /** How often the line is redrawn on a terminal */
+  static final long TERMINAL_INTERVAL_MS = 500;
+  /** How often a summary is printed when not on a terminal */
+  static final long QUIET_INTERVAL_MS = 30000;
+  /** Finished files printed per redraw, the rest are only counted */
+  static final int MAX_FINISHED_LINES = 20;
+
+  private PrintStream out = System.out;
+  private boolean terminal;
+  private String[] hosts;
+  private Thread timer;
+
+  private AtomicLong totalBytes = new AtomicLong(0);
+  private AtomicLong totalFiles = new AtomicLong(0);
+  private AtomicLong doneBytes = new AtomicLong(0);
+  private AtomicLong doneFiles = new AtomicLong(0);
+  private AtomicInteger activeFiles = new AtomicInteger(0);
+  /** Bytes per host, the source counts all reads */
+  private AtomicLong[] hostBytes;
+  private volatile boolean listingDone = false;
+  private Queue<String> finished = new ConcurrentLinkedQueue<String>();
+
+  /** The counters at the last redraw, for the rates */
+  private long lastNanos;
+  private long lastBytes;
+  private long[] lastHostBytes;
+  private double rate = 0;
+  private double[] hostRates;
+  private int lastLineLength = 0;
+
+  /**
+   * The progress of one file, or one range of a file, as a listener for the
+   * copiers.
+   *
+   * <p>What is reported is also kept on the item. When the item is tried
+   * again after a connection broke, the new copy starts from what the
+   * earlier attempts counted, so their bytes are not counted twice.
+   */
+  class Transfer implements StreamCopier.Listener {
+    private int target;
+    private TransferItem item;
+    private long reported;
+
+    Transfer(TransferItem item) {
+      this.target   = item.target;
+      this.item     = item;
+      this.reported = item.reported;
+    }
+
+    /**
+     * @param transferred bytes of this file copied so far
+     */
+    public void reportProgress(long transferred) {
+      long delta = transferred - reported;
+      reported = transferred;
+      item.reported = transferred;
+      doneBytes.addAndGet(delta);
+      hostBytes[0].addAndGet(delta);
+      if (target == TransferItem.ALL) {
+        for (int i=1; i<hostBytes.length; i++) {
+          hostBytes[i].addAndGet(delta);
+        }
+      } else {
+        hostBytes[target].addAndGet(delta);
+      }
+    }
+
+    /**
+     * The copy is over, whether the file is finished or not
+     */
+    public void done() {
+      activeFiles.decrementAndGet();
+    }
+  }
+
+  /**
+   * @param hosts the host name of the source followed by the destinations
+   * @param terminal whether to redraw a line, or print a summary now and then
+   */
+  Progress(String[] hosts, boolean terminal) {
+    this.hosts     = hosts;
+    this.terminal  = terminal;
+    hostBytes      = new AtomicLong[hosts.length];
+    lastHostBytes  = new long[hosts.length];
+    hostRates      = new double[hosts.length];
+    for (int i=0; i<hosts.length; i++) {
+      hostBytes[i] = new AtomicLong(0);
+    }
+  }
+
+  /**
+   * A file that has to be read from the source
+   */
+  public void found(long bytes) {
+    totalFiles.incrementAndGet();
+    totalBytes.addAndGet(bytes);
+  }
+
+  /**
+   * A file that was found does not have to be copied after all
+   */
+  public void skipped(long bytes) {
+    totalFiles.decrementAndGet();
+    totalBytes.addAndGet(-bytes);
+  }
+
+  /**
+   * Bytes found that are not copied yet
+   */
+  public long remainingBytes() {
+    return totalBytes.get() - doneBytes.get();
+  }
+
+  /**
+   * All files have been found
+   */
+  public void listingDone() {
+    listingDone = true;
+  }
+
+  /**
+   * Start copying a file or a range of it
+   *
+   * @param item the file or range, to a destination or to TransferItem.ALL
+   */
+  public Transfer start(TransferItem item) {
+    activeFiles.incrementAndGet();
+    return new Transfer(item);
+  }
+
+  /**
+   * A whole file is on the destination
+   */
+  public void fileDone(String name, long length) {
+    doneFiles.incrementAndGet();
+    if (terminal) {
+      finished.add(String.format("%-40s %s", renderFileName(name), renderSize(length)));
+    }
+  }
+
+  /**
+   * Start drawing
+   */
+  public void start() {
+    lastNanos = System.nanoTime();
+    timer = new Thread(new Runnable() {
+      public void run() {
+        long interval = terminal ? TERMINAL_INTERVAL_MS : QUIET_INTERVAL_MS;
+        try {
+          while (true) {
+            Thread.sleep(interval);
+            draw(false);
+          }
+        } catch (InterruptedException e) {
+          // Stopped
+        }
+      }
+    }, "sftpsquid-progress");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  /**
+   * Stop drawing and leave the final numbers on screen
+   */
+  public void stop() {
+    if (timer == null) {
+      return;
+    }
+    timer.interrupt();
+    try {
+      timer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    timer = null;
+    draw(true);
+  }
+
+  private synchronized void draw(boolean last) {
+    long now = System.nanoTime();
+    double seconds = (now - lastNanos) / 1e9;
+    if (seconds > 0) {
+      long bytes = doneBytes.get();
+      rate = smooth(rate, (bytes - lastBytes) / seconds);
+      lastBytes = bytes;
+      for (int i=0; i<hosts.length; i++) {
+        long b = hostBytes[i].get();
+        hostRates[i] = smooth(hostRates[i], (b - lastHostBytes[i]) / seconds);
+        lastHostBytes[i] = b;
+      }
+      lastNanos = now;
+    }
+
+    String status = renderStatus();
+    if (!terminal) {
+      out.println(new SimpleDateFormat("HH:mm:ss").format(new Date()) + " " + status);
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    int lines = 0;
+    int skippedLines = 0;
+    String line;
+    while ((line = finished.poll()) != null) {
+      if (lines++ < MAX_FINISHED_LINES) {
+        sb.append('\r').append(pad(line)).append('\n');
+      } else {
+        skippedLines++;
+      }
+    }
+    if (skippedLines > 0) {
+      sb.append('\r').append(pad("... and " + skippedLines + " more files")).append('\n');
+    }
+    sb.append('\r').append(pad(status));
+    lastLineLength = status.length();
+    if (last) {
+      sb.append('\n');
+    }
+    out.print(sb);
+    out.flush();
+  }
+
+  /**
+   * Mostly the last rate, so it follows changes but does not jump around
+   */
+  private static double smooth(double old, double current) {
+    return old == 0 ? current : 0.3 * old + 0.7 * current;
+  }
+
+  /**
+   * Pad a line with spaces to cover what was drawn before
+   */
+  private String pad(String line) {
+    StringBuilder sb = new StringBuilder(line);
+    while (sb.length() < lastLineLength) {
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+
+  private String renderStatus() {
+    long done  = doneBytes.get();
+    long total = Math.max(totalBytes.get(), done);
+    StringBuilder sb = new StringBuilder();
+    if (total > 0) {
+      sb.append(String.format("%5.1f%% ", 100.0 * done / total));
+    }
+    if (terminal) {
+      sb.append(renderBar(done, total, 30)).append(' ');
+    }
+    sb.append(renderSize(done)).append(" of ").append(renderSize(total));
+    sb.append("  ").append(renderSize((long) rate)).append("/s");
+    sb.append("  ETA ");
+    if (listingDone && rate > 0) {
+      sb.append(renderTime((long) ((total - done) / rate)));
+    } else {
+      sb.append("--:--");
+    }
+    sb.append("  ").append(doneFiles.get()).append('/').append(totalFiles.get()).append(" files");
+    sb.append("  ").append(activeFiles.get()).append(" active");
+    for (int i=0; i<hosts.length; i++) {
+      sb.append(i == 0 ? "  [" : ", ").append(hosts[i]).append(' ')
+        .append(renderSize((long) hostRates[i])).append("/s");
+    }
+    sb.append(']');
+    return sb.toString();
+  }
+
+  private static String renderFileName(String file_name) {
+    if (file_name.length() > 40) {
+      return file_name.substring(0, 38) + "..";
+    }
+    return file_name;
+  }
+
+  static String renderSize(long bytes) {
+    String[] sizes = {"b", "Kb", "Mb", "Gb", "Tb", "Pb", "Hb"};
+    int exponent = bytes < 1000 ? 0 : (int) Math.floor(Math.log(bytes) / Math.log(1000));
+    double size = bytes / Math.pow(1000.0, (double) exponent);
+    return String.format("%.1f %s", size, sizes[exponent]);
+  }
+
+  private static String renderTime(long seconds) {
+    if (seconds >= 3600) {
+      return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+    return String.format("%d:%02d", seconds / 60, seconds % 60);
+  }
+
+  private static String renderBar(long done, long total, int width) {
+    int bar_length = total > 0 ? (int) ((width - 2) * done / total) : 0;
+    StringBuilder sb = new StringBuilder(width);
+    sb.append('|');
+    for (int i=0; i<width-2; i++) {
+      if (i < bar_length - 1 || (i == bar_length - 1 && bar_length == width - 2)) {
+        sb.append('=');
+      } else if (i == bar_length - 1) {
+        sb.append('>');
+      } else {
+        sb.append(' ');
+      }
+    }
+    sb.append('|');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.Console;
+
+/**
+ * Asks the user on the console, one question at a time, since several
+ * connections can be logging in at once
+ */
+class Prompt {
+  /**
+   * Read a password, without echo
+   *
+   * @return the answer, empty if there is no console
+   */
+  static synchronized char[] readPassword(String question) {
+    System.out.print(question);
+    Console cons = System.console();
+    if (cons == null) {
+      System.out.println();
+      return new char[0];
+    }
+    return cons.readPassword();
+  }
+}
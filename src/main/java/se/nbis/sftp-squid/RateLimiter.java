@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket that limits how many bytes per second pass through it.
+ *
+ * <p>Each caller reserves its bytes up front and then waits until the bucket
+ * has caught up, so parallel transfers share the rate in the order they ask
+ * for it and no lock is held while waiting. Up to a quarter of a second of
+ * unused rate can be saved up as a burst.
+ *
+ * <p>The rate can be changed at any time, threads that are waiting are then
+ * woken up so a raised limit takes effect at once.
+ */
+class RateLimiter {
+  private static final long BURST_NANOS = 250 * 1000 * 1000;
+
+  /** Bytes per second, 0 for no limit */
+  private long rate;
+  /** When the bytes reserved so far have been paid for */
+  private long due = 0;
+  /** Changes when the rate changes */
+  private int generation = 0;
+
+  RateLimiter(long rate) {
+    this.rate = rate;
+  }
+
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  /**
+   * Change the rate, 0 removes the limit
+   */
+  public synchronized void setRate(long rate) {
+    this.rate = rate;
+    due = 0;
+    generation++;
+    notifyAll();
+  }
+
+  /**
+   * Wait until the bytes may pass
+   */
+  public synchronized void acquire(long bytes) throws InterruptedIOException {
+    if (rate <= 0 || bytes <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    // Unused rate is saved up by due lagging behind now, by at most the burst
+    if (due == 0 || due < now - BURST_NANOS) {
+      due = now - BURST_NANOS;
+    }
+    due += bytes * 1000000000L / rate;
+    long until = due;
+    int gen = generation;
+    try {
+      long left;
+      while ((left = until - System.nanoTime()) > 0 && gen == generation) {
+        wait(left / 1000000, (int) (left % 1000000));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+    }
+  }
+}
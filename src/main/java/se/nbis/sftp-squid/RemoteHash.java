@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Let the server hash files for us, using the check-file-name or md5-hash
+ * extensions from draft-ietf-secsh-filexfer-extensions.
+ *
+ * <p>We use the variants that take a file name since sshj does not give us
+ * the handle of an open file. Whether a server supports an extension is found
+ * out by trying, the first OP_UNSUPPORTED answer turns it off for that host.
+ */
+class RemoteHash {
+  /** Hash algorithms we ask for, in order of preference */
+  static final String ALGORITHMS = "sha256,sha1,md5";
+
+  private Logger log = Logger.getLogger(getClass());
+  /** Name used in log messages */
+  private String name;
+  private volatile boolean checkFile = true;
+  private volatile boolean md5Hash = true;
+
+  /**
+   * Hashes of consecutive blocks of a file
+   */
+  static class Blocks {
+    public String algorithm;
+    public byte[][] hashes;
+
+    Blocks(String algorithm, byte[][] hashes) {
+      this.algorithm = algorithm;
+      this.hashes    = hashes;
+    }
+  }
+
+  RemoteHash(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Whether the server might still be able to hash for us
+   */
+  public boolean isSupported() {
+    return checkFile || md5Hash;
+  }
+
+  /**
+   * Hash a file in blocks.
+   *
+   * @param c session to the server
+   * @param path the file to hash
+   * @param length number of bytes from the start of the file to hash
+   * @param blockSize size of each block, the last one may be shorter
+   * @param algorithms comma separated list of algorithms we accept
+   * @return the hashes or null if the server can't hash this file for us
+   */
+  public Blocks hash(SFTPClient c, String path, long length, int blockSize, String algorithms) throws IOException {
+    int blocks = (int) ((length + blockSize - 1) / blockSize);
+    try {
+      if (checkFile) {
+        try {
+          return checkFile(c.getSFTPEngine(), path, length, blockSize, blocks, algorithms);
+        } catch (SFTPException e) {
+          if (e.getStatusCode() != Response.StatusCode.OP_UNSUPPORTED) {
+            throw e;
+          }
+          log.debug(name + " does not support check-file-name");
+          checkFile = false;
+        }
+      }
+      if (md5Hash && algorithms.contains("md5")) {
+        try {
+          return md5Hash(c.getSFTPEngine(), path, length, blockSize, blocks);
+        } catch (SFTPException e) {
+          if (e.getStatusCode() != Response.StatusCode.OP_UNSUPPORTED) {
+            throw e;
+          }
+          log.debug(name + " does not support md5-hash");
+          md5Hash = false;
+        }
+      }
+    } catch (SFTPException e) {
+      log.debug("Could not hash " + path + " on " + name + ": " + e);
+    }
+    return null;
+  }
+
+  /**
+   * Hash a whole file with check-file-name.
+   *
+   * @param algorithm the only algorithm we accept
+   * @return the hash or null if the server can't hash this file for us
+   */
+  public byte[] hashWhole(SFTPClient c, String path, long length, String algorithm) throws IOException {
+    if (!checkFile) {
+      return null;
+    }
+    try {
+      // Block size 0 means one hash for the whole range
+      Blocks b = checkFile(c.getSFTPEngine(), path, length, 0, 1, algorithm);
+      if (b.algorithm.equals(algorithm)) {
+        return b.hashes[0];
+      }
+    } catch (SFTPException e) {
+      if (e.getStatusCode() == Response.StatusCode.OP_UNSUPPORTED) {
+        log.debug(name + " does not support check-file-name");
+        checkFile = false;
+      } else {
+        log.debug("Could not hash " + path + " on " + name + ": " + e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * One request gives the hashes of all blocks. Hashing a large file can take
+   * long, so we wait for it without the usual timeout.
+   */
+  private Blocks checkFile(SFTPEngine engine, String path, long length, int blockSize, int blocks, String algorithms)
+      throws IOException {
+    Request req = engine.newExtendedRequest("check-file-name")
+      .putString(path)
+      .putString(algorithms)
+      .putUInt64(0)
+      .putUInt64(length)
+      .putUInt32(blockSize);
+    Response res = engine.request(req).retrieve();
+    res.ensurePacketTypeIs(PacketType.EXTENDED_REPLY);
+
+    res.readString(); // "check-file"
+    String algorithm = res.readString();
+    byte[] all = new byte[res.available()];
+    res.readRawBytes(all);
+
+    if (blocks == 0 || all.length % blocks != 0) {
+      throw new SFTPException("Unexpected check-file reply from " + name);
+    }
+    int hashLength = all.length / blocks;
+    byte[][] hashes = new byte[blocks][hashLength];
+    for (int i=0; i<blocks; i++) {
+      System.arraycopy(all, i * hashLength, hashes[i], 0, hashLength);
+    }
+    return new Blocks(algorithm, hashes);
+  }
+
+  /**
+   * One request per block, all sent before waiting for the answers. Like
+   * check-file, without the usual timeout.
+   */
+  private Blocks md5Hash(SFTPEngine engine, String path, long length, int blockSize, int blocks) throws IOException {
+    List<Promise<Response, SFTPException>> promises = new ArrayList<Promise<Response, SFTPException>>();
+    for (int i=0; i<blocks; i++) {
+      long offset = (long) i * blockSize;
+      Request req = engine.newExtendedRequest("md5-hash")
+        .putString(path)
+        .putUInt64(offset)
+        .putUInt64(Math.min(blockSize, length - offset))
+        .putString(""); // No quick check
+      promises.add(engine.request(req));
+    }
+
+    byte[][] hashes = new byte[blocks][];
+    for (int i=0; i<blocks; i++) {
+      Response res = promises.get(i).retrieve();
+      res.ensurePacketTypeIs(PacketType.EXTENDED_REPLY);
+      res.readString(); // "md5-hash"
+      hashes[i] = res.readStringAsBytes();
+    }
+    return new Blocks("md5", hashes);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Let the server copy a file to itself, when the source and a destination
+ * are the same user on the same server, so the data never comes here.
+ *
+ * <p>The copy-data extension from OpenSSH is used when the server announces
+ * it, otherwise copy-file from draft-ietf-secsh-filexfer-extensions is
+ * tried. copy-data works on handles, and sshj does not give us the handle of
+ * an open file, so the files are opened with our own requests. Like for
+ * RemoteHash the first OP_UNSUPPORTED answer turns an extension off.
+ *
+ * <p>Attributes for the copy are set on the destination handle before it is
+ * closed with copy-data, see PreservingFile. With copy-file a SETSTAT is sent
+ * right behind the copy, so neither waits for an extra round trip.
+ */
+class ServerCopy {
+  /** SSH_FXF_READ */
+  private static final int READ = 0x01;
+  /** SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC */
+  private static final int WRITE_NEW = 0x02 | 0x08 | 0x10;
+
+  private Logger log = Logger.getLogger(getClass());
+  /** Name used in log messages */
+  private String name;
+  private volatile boolean copyData;
+  private volatile boolean copyFile = true;
+
+  /**
+   * @param c a session to the server, to see which extensions it announces
+   */
+  ServerCopy(String name, SFTPClient c) {
+    this.name = name;
+    this.copyData = c.getSFTPEngine().getServerExtensionData("copy-data") != null;
+  }
+
+  /**
+   * Whether the server might still be able to copy for us
+   */
+  public boolean isSupported() {
+    return copyData || copyFile;
+  }
+
+  /**
+   * Copy a whole file on the server, replacing the destination.
+   *
+   * @param c session to the server
+   * @param attributes to set on the copy, may be null
+   * @return false if the server can't copy this file, then it has to be
+   *         streamed as usual
+   */
+  public boolean copy(SFTPClient c, String source, String destination, FileAttributes attributes)
+      throws IOException {
+    SFTPEngine engine = c.getSFTPEngine();
+    if (copyData) {
+      try {
+        copyData(engine, source, destination, attributes);
+        return true;
+      } catch (SFTPException e) {
+        if (e.getStatusCode() == Response.StatusCode.OP_UNSUPPORTED) {
+          log.debug(name + " does not support copy-data");
+          copyData = false;
+        } else {
+          log.debug("Could not copy " + source + " on " + name + ": " + e);
+          return false;
+        }
+      }
+    }
+    if (copyFile) {
+      try {
+        Request req = engine.newExtendedRequest("copy-file")
+          .putString(source)
+          .putString(destination)
+          .putBoolean(true); // Overwrite
+        Promise<Response, SFTPException> copy = engine.request(req);
+        Promise<Response, SFTPException> setting = null;
+        if (attributes != null) {
+          setting = engine.request(engine.newRequest(PacketType.SETSTAT)
+              .putString(destination)
+              .putFileAttributes(attributes));
+        }
+        Response copied = copy.retrieve();
+        // The answer to the SETSTAT only matters when the copy worked
+        Response set = setting != null ? setting.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS) : null;
+        copied.ensureStatusPacketIsOK();
+        if (set != null) {
+          try {
+            set.ensureStatusPacketIsOK();
+          } catch (SFTPException e) {
+            throw notSet(destination, e);
+          }
+        }
+        return true;
+      } catch (SFTPException e) {
+        if (e.getStatusCode() == Response.StatusCode.OP_UNSUPPORTED) {
+          log.debug(name + " does not support copy-file");
+          copyFile = false;
+        } else {
+          log.debug("Could not copy " + source + " on " + name + ": " + e);
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Open both files and let the server copy from one handle to the other.
+   * The copy can take long, so we wait for it without the usual timeout.
+   */
+  private void copyData(SFTPEngine engine, String source, String destination, FileAttributes attributes)
+      throws IOException {
+    byte[] in = open(engine, source, READ);
+    try {
+      byte[] out = open(engine, destination, WRITE_NEW);
+      try {
+        Request req = engine.newExtendedRequest("copy-data")
+          .putString(in)
+          .putUInt64(0)
+          .putUInt64(0) // Until the end of the file
+          .putString(out)
+          .putUInt64(0);
+        engine.request(req).retrieve().ensureStatusPacketIsOK();
+      } catch (IOException e) {
+        close(engine, out);
+        throw e;
+      }
+      if (attributes != null) {
+        try {
+          PreservingFile.closeWith(engine, out, attributes);
+        } catch (SFTPException e) {
+          throw notSet(destination, e);
+        }
+      } else {
+        close(engine, out);
+      }
+    } finally {
+      close(engine, in);
+    }
+  }
+
+  /**
+   * The copy is made, so this is not an error that falling back to streaming
+   * would fix, and must not look like the extension is unsupported
+   */
+  private IOException notSet(String destination, SFTPException e) {
+    return new IOException("Could not set the attributes of " + destination + ": " + e.getMessage());
+  }
+
+  private byte[] open(SFTPEngine engine, String path, int flags) throws IOException {
+    Request req = engine.newRequest(PacketType.OPEN)
+      .putString(path)
+      .putUInt32(flags)
+      .putFileAttributes(FileAttributes.EMPTY);
+    Response res = engine.request(req).retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+    if (res.getType() == PacketType.STATUS) {
+      res.ensureStatusPacketIsOK(); // Throws with the status the server gave
+    }
+    res.ensurePacketTypeIs(PacketType.HANDLE);
+    return res.readStringAsBytes();
+  }
+
+  private void close(SFTPEngine engine, byte[] handle) throws IOException {
+    Request req = engine.newRequest(PacketType.CLOSE).putString(handle);
+    engine.request(req).retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+  }
+}
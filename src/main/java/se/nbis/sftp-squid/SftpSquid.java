@@ -15,30 +15,42 @@
  */
 package se.nbis.sftpsquid;
 
-import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.common.StreamCopier;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.sftp.FileAttributes;
 import net.schmizz.sshj.sftp.FileMode;
 import net.schmizz.sshj.sftp.OpenMode;
 import net.schmizz.sshj.sftp.RemoteFile;
-import net.schmizz.sshj.sftp.RemoteResourceInfo;
 import net.schmizz.sshj.sftp.SFTPClient;
 import net.schmizz.sshj.transport.TransportException;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
-import net.schmizz.sshj.userauth.UserAuthException;
-import net.schmizz.sshj.userauth.method.AuthKeyboardInteractive;
-import net.schmizz.sshj.userauth.method.AuthMethod;
-import net.schmizz.sshj.userauth.method.AuthPassword;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ConnectException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -46,19 +58,116 @@ import java.util.List;
  *
  * <p>It is assumed that the user of this program do not have shell access through
  * SSH. Instead it streams the data from one server to the other through the
- * local machine. No data is stored locally.
+ * local machine. The contents of the files are never stored locally, but
+ * the paths are: a journal of what has been transferred is always kept in
+ * ~/.sftpsquid, or where --journal says, and removed when the transfer
+ * finishes, and a long queue of files waiting is kept in a temporary file,
+ * see SpillFile.
  *
  * <p>Further the program do not store any authentication information. Passwords
  * and other credentials are just passed through to the servers in question.
+ * The passwords are asked for before connecting and kept in memory, so all
+ * servers can be connected to at the same time.
+ *
+ * <p>The ciphers and MACs are offered fastest first, see AlgorithmChooser.
+ *
+ * <p>Several files can be transferred at the same time, each worker then gets
+ * its own SFTP session to the source and to the destination. The sessions are
+ * opened as extra channels on the existing connection, if the server refuses
+ * more channels a new connection is made. With --in-flight several workers
+ * share each pair of sessions, so the requests for many small files are in
+ * flight on the same channels at once.
+ *
+ * <p>Files larger than the chunk threshold are split in one byte range per
+ * worker, each range is copied at the same offset in the destination.
+ *
+ * <p>Each copy reads and writes in separate threads, see PipelinedCopier, so
+ * the source and destination round trips overlap. The number of outstanding
+ * reads and writes is tuned per host from the measured round trip time and
+ * throughput, see WindowTuner.
+ *
+ * <p>Directories are listed by a Crawler at the same time as the files are
+ * transferred, so the first file starts as soon as it has been found.
+ *
+ * <p>Finished files and the acknowledged part of unfinished ones are written
+ * to a local Journal. With --resume a failed run continues where it stopped.
+ * When a connection breaks during a file, only the worker that had the file
+ * waits, reconnects and continues from the journal, up to --retries times.
+ *
+ * <p>With --sync files whose size and modification time are the same on the
+ * destination are skipped. The destination attributes come from one listing
+ * per directory, see DestinationIndex.
+ *
+ * <p>With --preserve the modification times and permissions from the source
+ * listing are set on the destination files, on the open handle just before
+ * it is closed, see PreservingFile. --sync sets the times.
+ *
+ * <p>With --checksum both servers are asked to hash existing files in blocks,
+ * see RemoteHash, and only the blocks that differ are transferred.
+ *
+ * <p>With --verify or --manifest a SHA-256 of every file is calculated from
+ * the bytes as they are copied, no file is read twice.
+ *
+ * <p>With more than one destination each file is read once and written to
+ * all of them at the same time, see FanOutCopier.
+ *
+ * <p>Bandwidth can be limited globally and per host, see Bandwidth.
+ *
+ * <p>A destination that is the same account on the same server as the source
+ * gets its files copied by the server, see ServerCopy.
+ *
+ * <p>Throughput, wait and setup times and file latencies are counted in
+ * Metrics, which can be written as JSON and in the Prometheus text format.
  *
  * @author  Johan Viklund <johan.viklund@bils.se>
  * @version 0.1
  * @since   2016-03-31
  */
 public class SftpSquid {
-  private SSHClient[] ssh_clients;
+  /** Files are copied in segments of this size, the windows are tuned in between */
+  static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+  /** Smallest file that --chunk-threshold auto splits */
+  static final long MIN_AUTO_SPLIT = 2 * SEGMENT_SIZE;
+  /** Wait before the first retry after a connection broke, doubled each time */
+  static final long RETRY_DELAY_MS = 1000;
+  /** Longest wait between retries */
+  static final long MAX_RETRY_DELAY_MS = 60000;
+
   private SFTPClient[] sftp_clients;
   private HostFileInfo[] hfs;
+  private Options opts;
+  /** All SFTP sessions per host, the first one is the same as in sftp_clients */
+  private List<List<SFTPClient>> sessions = new ArrayList<List<SFTPClient>>();
+  /** How many workers use each session, with --in-flight they share them */
+  private Map<SFTPClient, Integer> sessionUsers = new IdentityHashMap<SFTPClient, Integer>();
+  /** Where the connections come from, see ConnectionPool */
+  private ConnectionPool pool;
+  /** Whether the pool is ours to close, or shared with other transfers */
+  private boolean ownPool;
+  /** Where the copies spent their time */
+  private CopyStats stats = new CopyStats();
+  /** Counters for --metrics-json and --metrics-prom */
+  private Metrics metrics;
+  /** Outstanding reads on the source and writes on the destination */
+  private WindowTuner[] tuners;
+  /** What has been transferred so far to each destination, for --resume */
+  private Journal[] journals;
+  /** Existing files and directories on each destination */
+  private DestinationIndex[] destinationIndexes;
+  /** Server side hashing, for --checksum */
+  private RemoteHash[] hashers;
+  /** Checksums of the transferred files per destination, for --manifest */
+  private Manifest[] manifests;
+  /** Copying on the server, for destinations that are the source account */
+  private ServerCopy[] serverCopies;
+  /** The destination path of each destination if it is a directory, else null */
+  private String[] destinationDirs;
+  /** How much of a source path to replace with the destination directory */
+  private int prefixLength;
+  /** Bandwidth limits, null when there are none */
+  private Bandwidth bandwidth;
+  /** What the user sees */
+  private Progress progress;
 
   private Logger log = Logger.getLogger(getClass());
 
@@ -69,8 +178,22 @@ public class SftpSquid {
     HostFileInfo[] hf;
 
     try {
-        hf = parseArgs(args);
-        SftpSquid ss = new SftpSquid(hf);
+        Options opts = new Options(args);
+        if (opts.daemon != 0) {
+          new Daemon(opts).run();
+          return;
+        }
+        if (opts.batch != null) {
+          if (!opts.hosts.isEmpty()) {
+            throw new IOException("Give the hosts in the batch file, not on the command line");
+          }
+          if (!new Batch(opts).run()) {
+            System.exit(1);
+          }
+          return;
+        }
+        hf = parseArgs(opts.hosts.toArray(new String[opts.hosts.size()]));
+        SftpSquid ss = new SftpSquid(hf, opts);
         ss.run();
     } catch (IOException e) {
       System.err.println("ERROR: " + e.getMessage());
@@ -104,12 +227,58 @@ public class SftpSquid {
    * @param HostFileInfo[] an array of HostFileInfo
    */
   SftpSquid(HostFileInfo[] hf) throws IOException {
+    this(hf, new Options());
+  }
+
+  /**
+   * Construct a new SftpSquid object from an array of HostFileInfos
+   *
+   * @param HostFileInfo[] an array of HostFileInfo
+   * @param Options the command line options
+   */
+  SftpSquid(HostFileInfo[] hf, Options opts) throws IOException {
+    this(hf, opts, null, null);
+  }
+
+  /**
+   * Construct a new SftpSquid object that gets its connections from a pool
+   * shared with other transfers
+   *
+   * @param HostFileInfo[] an array of HostFileInfo
+   * @param Options the command line options
+   * @param ConnectionPool the shared connections, null to make our own
+   * @param Bandwidth limits shared with other transfers, null to follow the
+   *                  limit options by ourselves
+   */
+  SftpSquid(HostFileInfo[] hf, Options opts, ConnectionPool pool, Bandwidth bandwidth) throws IOException {
     if (hf.length < 2) {
       throw new IOException("Need at least 2 hosts to transfer between");
     }
     this.hfs          = hf;
-    this.ssh_clients  = new SSHClient[hf.length];
+    this.opts         = opts;
+    this.pool         = pool;
+    this.ownPool      = pool == null;
     this.sftp_clients = new SFTPClient[hf.length];
+    this.tuners       = new WindowTuner[hf.length];
+    this.hashers      = new RemoteHash[hf.length];
+    this.destinationIndexes = new DestinationIndex[hf.length];
+    this.metrics      = new Metrics(hf, stats);
+    String[] hosts = new String[hf.length];
+    for (int i=0; i<hf.length; i++) {
+      hosts[i] = hf[i].host;
+    }
+    // Jobs in a batch run side by side, so they can't share one line
+    this.progress     = new Progress(hosts, !opts.batchJob && System.console() != null);
+    for (int i=0; i<hf.length; i++) {
+      this.tuners[i]  = new WindowTuner(hf[i].userHostSpec());
+      this.hashers[i] = new RemoteHash(hf[i].userHostSpec());
+      this.destinationIndexes[i] = DestinationIndex.forQueue(opts.queueMemory, opts.orderBySize, metrics.listNanos);
+    }
+    if (bandwidth != null) {
+      this.bandwidth = bandwidth.forHosts(hf);
+    } else if (Bandwidth.isNeeded(opts)) {
+      this.bandwidth = new Bandwidth(hf, opts);
+    }
   }
 
   /**
@@ -117,100 +286,228 @@ public class SftpSquid {
    */
   public void run() throws IOException {
     log.debug("run()");
+    if (opts.metricsProm != null) {
+      metrics.exportPeriodically(opts.metricsProm, opts.metricsInterval);
+    }
+    boolean success = false;
     try {
       connectAll();
       transfer();
+      success = true;
     } finally {
-      closeAll();
+      closeAll(success);
+      metrics.stopExport();
+      if (bandwidth != null) {
+        bandwidth.stop();
+      }
+      writeMetrics(success);
+    }
+  }
+
+  /**
+   * The counters of this transfer, they are updated while it runs
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Write the final metrics, a failure to do so is only logged so it can't
+   * hide the outcome of the transfer
+   */
+  private void writeMetrics(boolean success) {
+    try {
+      if (opts.metricsJson != null) {
+        Metrics.writeAtomically(opts.metricsJson, metrics.toJson(success));
+      }
+      if (opts.metricsProm != null) {
+        Metrics.writeAtomically(opts.metricsProm, metrics.toPrometheus());
+      }
+    } catch (IOException e) {
+      log.warn("Could not write metrics: " + e);
     }
   }
 
   /**
-   * Connect to the servers specified on the command line
+   * Connect to the servers specified on the command line.
+   *
+   * <p>The passwords are asked for first, then all servers are connected to
+   * at the same time. Questions the servers ask while logging in, like a
+   * second factor, are still asked one at a time.
    */
   public void connectAll() throws IOException {
     log.debug("connectAll");
-    for (int i=0; i<hfs.length; i++) {
+    if (pool == null) {
+      pool = new ConnectionPool(opts);
+    }
+    pool.askPasswords(hfs);
+
+    ExecutorService executor = Executors.newFixedThreadPool(hfs.length);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (final HostFileInfo hf : hfs) {
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          pool.connect(hf, metrics);
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+
+    IOException error = null;
+    for (Future<Void> f : futures) {
       try {
-        int tries = 3;
-        while (tries-- > 0) {
-          try {
-            SSHClient ssh = connect(hfs[i]);
-            SFTPClient sftp = ssh.newSFTPClient();
-
-            ssh_clients[i] = ssh;
-            sftp_clients[i] = sftp;
-            tries = -1;
-          } catch (UserAuthException e) {
-            System.err.println("Incorrect username and/or password for " + hfs[i].userHostSpec() + " try again.");
-            if (tries <= 0) {
-              throw e;
-            }
-          }
+        f.get();
+      } catch (InterruptedException e) {
+        error = new IOException("Interrupted while connecting");
+      } catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause() instanceof IOException
+            ? (IOException) e.getCause() : new IOException("Connecting failed: " + e.getCause());
         }
-      } catch (TransportException e) {
-        System.err.println("Something went wrong: " + e);
-        throw e;
-      } catch (ConnectException e) {
-        System.err.printf("Connection failure for %s: %s\n", hfs[i].userHostSpec(), e.getMessage());
-        throw e;
       }
     }
+    if (error != null) {
+      throw error; // The connections that were made are closed by run()
+    }
+
+    for (int i=0; i<hfs.length; i++) {
+      sftp_clients[i] = pool.newSFTPClient(hfs[i], metrics);
+
+      List<SFTPClient> s = new ArrayList<SFTPClient>();
+      s.add(sftp_clients[i]);
+      sessions.add(s);
+    }
   }
 
   /**
-   * Close all open connections
+   * Open extra SFTP sessions so that every host has one per worker.
+   *
+   * @param n number of sessions needed per host
    */
-  public void closeAll() throws IOException {
-    log.debug("closeAll()");
-    for (SSHClient ssh_client : ssh_clients) {
-      if (ssh_client != null && ssh_client.isConnected()) {
-        ssh_client.close();
+  public void openSessions(int n) throws IOException {
+    log.debug("openSessions(" + n + ")");
+    for (int i=0; i<hfs.length; i++) {
+      List<SFTPClient> s = sessions.get(i);
+      while (s.size() < n) {
+        s.add(pool.newSFTPClient(hfs[i], metrics));
       }
     }
   }
 
   /**
-   * Connect to one SFTP server
-   *
-   * @param  HostFileInfo A HostFileInfo object representing the server
-   * @return SSHClient
+   * Give back our SFTP sessions, and close the connections unless they are
+   * shared
    */
-  private SSHClient connect(HostFileInfo hf) throws IOException {
-    log.debug("Connecting to " + hf);
-    SSHClient ssh = new SSHClient();
-    ssh.addHostKeyVerifier(new PromiscuousVerifier());
-    ssh.connect(hf.host, hf.port);
+  public void closeAll() throws IOException {
+    closeAll(true);
+  }
 
-    try {
-      List<AuthMethod> authmethods = new LinkedList<AuthMethod>();
-      authmethods.add(new AuthKeyboardInteractive(new UserKeyboardAuth(hf)));
-      authmethods.add(new AuthPassword(new PasswordAuth(hf)));
-      ssh.auth(hf.user, authmethods);
-    } catch (IOException e) {
-      ssh.close(); // We have to clean this up
-      throw e;
+  /**
+   * @param reuse whether the sessions can be used by another transfer, false
+   *              after a failure
+   */
+  private void closeAll(boolean reuse) throws IOException {
+    log.debug("closeAll(" + reuse + ")");
+    for (int i=0; i<sessions.size(); i++) {
+      for (SFTPClient c : sessions.get(i)) {
+        pool.release(hfs[i], c, reuse && pool.isOpen(hfs[i], c));
+      }
+    }
+    sessions.clear();
+    if (ownPool && pool != null) {
+      pool.close();
     }
-
-    return ssh;
   }
 
   /**
    * Transfer the files
    */
   public void transfer() throws IOException {
+    journals = new Journal[hfs.length];
+    for (int d=1; d<hfs.length; d++) {
+      journals[d] = new Journal(journalFile(d), opts.resume);
+    }
+    manifests = new Manifest[hfs.length];
+    for (int d=1; d<hfs.length && opts.manifest != null; d++) {
+      manifests[d] = new Manifest(manifestFile(d));
+    }
+    // The server doesn't give us the bytes to hash, so not with --verify or --manifest
+    serverCopies = new ServerCopy[hfs.length];
+    for (int d=1; d<hfs.length && !opts.verify && opts.manifest == null; d++) {
+      if (hfs[d].userHostSpec().equals(hfs[0].userHostSpec())) {
+        serverCopies[d] = new ServerCopy(hfs[d].userHostSpec(), sftp_clients[d]);
+      }
+    }
+    boolean success = false;
+    try {
+      transferAll();
+      success = true;
+      long unchecked = metrics.uncheckedFiles.get();
+      if (unchecked > 0) {
+        System.err.printf("Warning: %d files could not be verified or added to the manifest\n", unchecked);
+      }
+    } finally {
+      for (int d=1; d<hfs.length; d++) {
+        if (manifests[d] != null) {
+          manifests[d].close();
+        }
+        if (success) {
+          journals[d].delete();
+        } else {
+          journals[d].close();
+        }
+      }
+      if (!success) {
+        System.err.println("Transfer did not finish, run again with --resume to continue");
+      }
+    }
+  }
+
+  /**
+   * Where to keep the journal for a destination, unless given with --journal
+   * it is in the .sftpsquid directory in the users home, named after the
+   * source and destination.
+   */
+  private File journalFile(int d) {
+    if (opts.journal != null) {
+      return new File(d == 1 ? opts.journal : opts.journal + "-" + d);
+    }
+    String name = Integer.toHexString((hfs[0].toString() + hfs[d].toString()).hashCode());
+    return new File(new File(System.getProperty("user.home"), ".sftpsquid"), "journal-" + name);
+  }
+
+  /**
+   * Where to write the manifest for a destination, each destination gets its
+   * own so it can be checked with sha256sum -c on that server
+   */
+  private String manifestFile(int d) {
+    return d == 1 ? opts.manifest : opts.manifest + "-" + d;
+  }
+
+  /**
+   * Transfer all files from the source to the destinations
+   */
+  private void transferAll() throws IOException {
     String source      = hfs[0].file;
-    String destination = hfs[1].file;
-    log.debug("transfer(): " + source + " -> " + destination);
+    log.debug("transfer(): " + source);
 
     FileMode.Type sourceType = getType(source, sftp_clients[0]);
-    FileMode.Type destType   = getType(destination, sftp_clients[1]);
-
-    if (sourceType == FileMode.Type.DIRECTORY && destType != sourceType) {
-      throw new IOException("Destination has to be a directory");
+    destinationDirs = new String[hfs.length];
+    for (int d=1; d<hfs.length; d++) {
+      FileMode.Type destType = getType(hfs[d].file, sftp_clients[d]);
+      if (sourceType == FileMode.Type.DIRECTORY && destType != sourceType) {
+        if (hfs.length > 2) {
+          throw new IOException("Destination has to be a directory: " + hfs[d].userHostSpec() + ":" + hfs[d].file);
+        }
+        throw new IOException("Destination has to be a directory");
+      }
+      destinationDirs[d] = destType == FileMode.Type.DIRECTORY ? hfs[d].file : null;
     }
 
-    List<String> sources = buildTransferList(source, sftp_clients[0]);
+    if (sourceType != FileMode.Type.REGULAR && sourceType != FileMode.Type.DIRECTORY) {
+      throw new IOException("Can't transfer this type of file (" + sourceType + ")");
+    }
 
     int lastSeparatorInSource = FilenameUtils.indexOfLastSeparator(source);
     if ( lastSeparatorInSource == -1 ) {
@@ -221,40 +518,171 @@ public class SftpSquid {
       }
     }
     log.debug("transfer() lastSeparatorInSource: " + lastSeparatorInSource);
+    prefixLength = lastSeparatorInSource;
 
-    for (String s : sources) {
-      String d = destination;
-      if ( destType == FileMode.Type.DIRECTORY ) {
-        d += s.substring(lastSeparatorInSource);
-      }
+    final TransferQueue queue = new TransferQueue(opts.queueMemory, opts.orderBySize);
 
-      transferFile(s, d);
+    progress.start();
+    try {
+      transferTree(source, sourceType, queue);
+    } finally {
+      progress.stop();
+    }
+
+    if (opts.stats) {
+      System.out.println(stats.summary());
+      System.out.printf("Final window: %d reads on source\n", tuners[0].window());
+      for (int d=1; d<hfs.length; d++) {
+        System.out.printf("Final window: %d writes on %s\n", tuners[d].window(), hfs[d].userHostSpec());
+      }
+      for (int i=0; i<hfs.length; i++) {
+        System.out.printf("Algorithms with %s: %s\n", hfs[i].userHostSpec(), metrics.algorithms(hfs[i].userHostSpec()));
+      }
     }
   }
 
   /**
-   * Create a list of files to transfer
+   * Find the files to transfer and run the workers on them
    */
-  private List<String> buildTransferList(String source, SFTPClient c) throws IOException {
-    log.debug("Building transferlist from " + source);
+  private void transferTree(String source, FileMode.Type sourceType, final TransferQueue queue) throws IOException {
+    if (sourceType == FileMode.Type.REGULAR) {
+      FileAttributes attributes = sftp_clients[0].stat(source);
+      progress.found(attributes.getSize());
+      progress.listingDone();
+      queue.add(newItem(source, attributes));
+      boolean splitting = opts.chunkThreshold > 0 || opts.autoSplit;
+      int sessionCount = splitting ? opts.parallel : 1;
+      openSessions(sessionCount);
+      runWorkers(queue, splitting ? sessionCount * opts.inFlight : 1);
+    } else {
+      openSessions(opts.parallel);
+      Crawler crawler = new Crawler(sessions.get(0), new Crawler.Listener() {
+        public void file(String path, FileAttributes attributes) throws IOException {
+          progress.found(attributes.getSize());
+          queue.add(newItem(path, attributes));
+        }
+
+        public void done(IOException error) {
+          if (error != null) {
+            queue.abort();
+          }
+          progress.listingDone();
+          queue.producerDone();
+        }
+      }, metrics.listNanos);
+
+      queue.startProducer();
+      crawler.start(source);
+      try {
+        runWorkers(queue, opts.parallel * opts.inFlight);
+      } finally {
+        crawler.stop();
+      }
+      crawler.await();
+    }
+  }
 
-    FileMode.Type type = getType(source, c);
-    List<String> ret = new LinkedList<String>();
+  /**
+   * Let a number of workers transfer files from the queue until it is empty.
+   *
+   * <p>The workers are spread evenly over the open pairs of SFTP sessions.
+   * The first failure aborts the queue so the other workers stop after their
+   * current file.
+   */
+  private void runWorkers(final TransferQueue queue, final int workers) throws IOException {
+    log.debug("runWorkers(" + workers + ")");
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    synchronized (sessionUsers) {
+      sessionUsers.clear();
+    }
 
-    if (type == FileMode.Type.REGULAR) {
-      ret.add(source);
-      return ret;
+    for (int w=0; w<workers; w++) {
+      // The source session first, then one per destination
+      final SFTPClient[] own = new SFTPClient[hfs.length];
+      for (int i=0; i<hfs.length; i++) {
+        own[i] = sessions.get(i).get(w % sessions.get(i).size());
+        addUser(own[i]);
+      }
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws IOException, InterruptedException {
+          TransferItem item;
+          while ((item = queue.take()) != null) {
+            try {
+              while (true) {
+                try {
+                  if (item.target == TransferItem.ALL) {
+                    fanOut(item, own[0], own, queue, workers);
+                  } else {
+                    transferFile(item, own[0], own[item.target], queue, workers);
+                  }
+                  break;
+                } catch (IOException e) {
+                  if (item.attempts >= opts.retries || !isConnectionFailure(e, own)) {
+                    throw e;
+                  }
+                  item.attempts++;
+                  metrics.retries.incrementAndGet();
+                  reconnect(own, item, e);
+                }
+              }
+            } catch (IOException e) {
+              queue.abort();
+              throw e;
+            } finally {
+              queue.done(item);
+            }
+          }
+          return null;
+        }
+      }));
     }
-    if (type != FileMode.Type.DIRECTORY) {
-      throw new IOException("Can't transfer this type of file (" + type + ")");
+    executor.shutdown();
+
+    try {
+      for (Future<Void> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      queue.abort();
+      executor.shutdownNow();
+      throw new IOException("Interrupted while transferring");
+    } catch (ExecutionException e) {
+      queue.abort();
+      executor.shutdownNow();
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Transfer failed: " + e.getCause());
     }
+  }
 
-    List<RemoteResourceInfo> paths = c.ls(source);
-    for (RemoteResourceInfo p : paths) {
-      ret.addAll( buildTransferList(p.getPath(), c) );
+  /**
+   * A work item for a file found on the source, with only one destination it
+   * goes straight there, otherwise to all destinations at once
+   */
+  private TransferItem newItem(String source, FileAttributes attributes) {
+    TransferItem item;
+    if (hfs.length == 2) {
+      item = new TransferItem(source, 1, destinationPath(1, source));
+    } else {
+      item = new TransferItem(source, TransferItem.ALL, null);
     }
+    item.attributes = attributes;
+    return item;
+  }
 
-    return ret;
+  /**
+   * Where a source file should end up on a destination
+   *
+   * @param d the destination host number
+   * @param source path of the file on the source
+   */
+  private String destinationPath(int d, String source) {
+    if (destinationDirs[d] == null) {
+      return hfs[d].file;
+    }
+    return destinationDirs[d] + source.substring(prefixLength);
   }
 
   /**
@@ -269,44 +697,777 @@ public class SftpSquid {
   }
 
   /**
-   * Transfer one file between the two systems
+   * Whether a failure came from a broken connection or session, and not
+   * from the servers refusing something
+   *
+   * @param own the sessions the failed copy used
+   */
+  private boolean isConnectionFailure(IOException e, SFTPClient[] own) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof TransportException || t instanceof ConnectionException || t instanceof SocketException) {
+        return true;
+      }
+    }
+    for (int i=0; i<own.length; i++) {
+      if (!pool.isConnected(hfs[i], own[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wait, longer for every attempt, and replace the broken sessions of a
+   * worker. A session is broken if its connection is down or its channel was
+   * closed. If none of them is, we can't tell which one failed and all of
+   * them are replaced. Getting a new session reconnects with the password
+   * from the first login. If that fails the next attempt fails quickly and we
+   * end up here again.
+   *
+   * <p>Other workers may share the old sessions, so they are only given back
+   * when the last of them has moved on, see replaceSession().
+   *
+   * @param own the sessions of the worker, changed in place
+   */
+  private void reconnect(SFTPClient[] own, TransferItem item, IOException cause) throws IOException {
+    long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(item.attempts - 1, 16));
+    System.err.printf("Connection problem with %s (%s), trying again in %d s (%d of %d)\n",
+        item.source, cause.getMessage(), delay / 1000, item.attempts, opts.retries);
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting to reconnect");
+    }
+
+    boolean anyBroken = false;
+    for (int i=0; i<own.length; i++) {
+      anyBroken |= !pool.isOpen(hfs[i], own[i]);
+    }
+    for (int i=0; i<own.length; i++) {
+      if (anyBroken && pool.isOpen(hfs[i], own[i])) {
+        continue;
+      }
+      SFTPClient fresh;
+      try {
+        fresh = pool.newSFTPClient(hfs[i], metrics);
+      } catch (IOException e) {
+        log.debug("Could not reconnect to " + hfs[i].userHostSpec() + ": " + e);
+        continue;
+      }
+      replaceSession(i, own[i], fresh);
+      own[i] = fresh;
+    }
+  }
+
+  /**
+   * Put a new session in the place of an old one for one worker. The old one
+   * is given back to the pool when no other worker uses it, for reuse if it
+   * still works. Until then it stays in the session list so that closeAll()
+   * gives it back if its other users never reconnect. The first session of a
+   * host is also used outside the workers, so it is kept while it works.
+   *
+   * @param i the host number
+   */
+  private void replaceSession(int i, SFTPClient old, SFTPClient fresh) {
+    addUser(fresh);
+    boolean works = pool.isOpen(hfs[i], old);
+    boolean last;
+    synchronized (sessionUsers) {
+      int users = sessionUsers.remove(old) - 1;
+      last = users <= 0 && !(works && sftp_clients[i] == old);
+      if (users > 0) {
+        sessionUsers.put(old, users);
+      }
+    }
+    List<SFTPClient> s = sessions.get(i);
+    synchronized (s) {
+      int k = s.indexOf(old);
+      if (last && k >= 0) {
+        s.set(k, fresh);
+      } else {
+        s.add(fresh);
+      }
+    }
+    if (!works && sftp_clients[i] == old) {
+      sftp_clients[i] = fresh;
+    }
+    if (last) {
+      pool.release(hfs[i], old, works);
+    }
+  }
+
+  private void addUser(SFTPClient sftp) {
+    synchronized (sessionUsers) {
+      Integer users = sessionUsers.get(sftp);
+      sessionUsers.put(sftp, users == null ? 1 : users + 1);
+    }
+  }
+
+  /**
+   * Transfer one file, or one range of a file, between the two systems
+   *
+   * <p>If the file is larger than the chunk threshold it is not copied here,
+   * instead the destination is created and one range per worker is put first
+   * on the queue.
+   *
+   * @param item the file or range to transfer
+   * @param src the SFTP session to read from
+   * @param dst the SFTP session to write to
+   * @param queue the work queue, for putting ranges on
+   * @param workers number of workers sharing the queue
+   */
+  private void transferFile(TransferItem item, SFTPClient src, SFTPClient dst, TransferQueue queue, int workers) throws IOException {
+    log.debug("Transfer " + item);
+    String source = item.source;
+    String destination = item.destination;
+    int d = item.target;
+    long start = System.nanoTime();
+
+    if (item.isWholeFile() && isSkipped(item, dst)) {
+      progress.skipped(item.attributes != null ? item.attributes.getSize() : 0);
+      return;
+    }
+    if (item.isWholeFile() && opts.checksum && transferChangedBlocks(item, src, dst)) {
+      return;
+    }
+    if (item.isWholeFile() && copiesOnServer(d) && copyOnServer(item, dst)) {
+      return;
+    }
+
+    Set<OpenMode> destinationMode = EnumSet.of(OpenMode.WRITE);
+    if (item.isWholeFile()) {
+      createPath(destination, dst, destinationIndexes[d]);
+      if (resuming(item) && journals[d].hasProgress(destination)) {
+        destinationMode = EnumSet.of(OpenMode.WRITE, OpenMode.CREAT);
+      } else {
+        destinationMode = EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC);
+      }
+    }
+
+    RemoteFile fileSource = src.open(source);
+    long length = -1;
+    try {
+      // The size from the listing saves a round trip per file
+      if (item.attributes != null && item.attributes.has(FileAttributes.Flag.SIZE)) {
+        length = item.attributes.getSize();
+      } else if (item.isWholeFile()) {
+        length = fileSource.length();
+      }
+      if (item.isWholeFile() && shouldSplit(length, workers)) {
+        dst.open(destination, destinationMode).close();
+        splitInRanges(item, length, workers, queue);
+        return;
+      }
+
+      PreservingFile fileDestination = PreservingFile.open(dst, destination, destinationMode);
+      Progress.Transfer listener = progress.start(item);
+      try {
+        int bufSize = calculateMaxBufferSize(src, dst, fileDestination);
+        long rangeLength = item.isWholeFile() ? length : item.length;
+        long copied = 0;
+        if (resuming(item)) {
+          copied = journals[d].confirmed(destination, item.offset) - item.offset;
+        }
+
+        // Only files that are copied in one go from the start can be hashed
+        // here, the others are hashed by the servers when they are done
+        MessageDigest digest = null;
+        if (item.isWholeFile() && copied == 0 && (opts.verify || opts.manifest != null)) {
+          digest = newDigest();
+        }
+
+        if (item.isWholeFile() && copied == 0 && length <= bufSize) {
+          copySmall(fileSource, fileDestination, d, length, bufSize, listener, digest);
+        } else {
+          copyRange(fileSource, fileDestination, d, destination, item.offset, rangeLength, copied, bufSize, listener, digest);
+        }
+        if (digest != null) {
+          checkDigest(d, destination, length, digest.digest(), dst);
+        } else if (item.isWholeFile() && (opts.verify || opts.manifest != null)) {
+          checkOnServers(d, source, destination, length, src, dst);
+        }
+        if (item.isWholeFile()) {
+          fileDestination.setAttributesOnClose(preserved(item.attributes));
+        }
+      } finally {
+        listener.done();
+        fileDestination.close();
+      }
+    } finally {
+      fileSource.close();
+    }
+
+    if (item.isWholeFile()) {
+      journals[d].done(destination, length);
+      metrics.fileRead();
+      metrics.fileDone(d, System.nanoTime() - start);
+      progress.fileDone(fileNameOnly(source), length);
+    } else if (item.rangesLeft.decrementAndGet() == 0) {
+      // The ranges have their own handles, the last one done sets the attributes
+      FileAttributes attributes = preserved(item.attributes);
+      if (attributes != null) {
+        dst.setattr(destination, attributes);
+      }
+      if (opts.verify || opts.manifest != null) {
+        checkOnServers(d, source, destination, item.fileLength, src, dst);
+      }
+      journals[d].done(destination, item.fileLength);
+      metrics.fileRead();
+      metrics.fileDone(d, -1);
+      progress.fileDone(fileNameOnly(source), item.fileLength);
+    }
+  }
+
+  /**
+   * Whether a destination is the source account and the server might copy
+   * files for us, see ServerCopy
+   */
+  private boolean copiesOnServer(int d) {
+    return serverCopies[d] != null && serverCopies[d].isSupported();
+  }
+
+  /**
+   * Let the server copy a whole file to itself
+   *
+   * @param c session to the destination, which is also the source
+   * @return false if the server couldn't, then the file is streamed as usual
+   */
+  private boolean copyOnServer(TransferItem item, SFTPClient c) throws IOException {
+    int d = item.target;
+    long start = System.nanoTime();
+    createPath(item.destination, c, destinationIndexes[d]);
+    if (!serverCopies[d].copy(c, item.source, item.destination, preserved(item.attributes))) {
+      return false;
+    }
+    log.debug("Copied " + item.source + " on " + hfs[d].userHostSpec());
+    long length = TransferQueue.size(item);
+    Progress.Transfer listener = progress.start(item);
+    listener.reportProgress(length);
+    listener.done();
+    metrics.serverCopiedBytes.addAndGet(length);
+    journals[d].done(item.destination, length);
+    metrics.fileRead();
+    metrics.fileDone(d, System.nanoTime() - start);
+    progress.fileDone(fileNameOnly(item.source), length);
+    return true;
+  }
+
+  /**
+   * Copy a file to all destinations at once, reading it from the source only
+   * once, see FanOutCopier.
    *
-   * @param source The source file as a string
-   * @param destination the destination file as a string
+   * <p>Files that only one destination needs, files that are split in ranges,
+   * files for --checksum and partly transferred files go on the queue once
+   * per destination instead. Destinations that fall behind are dropped from
+   * the copy and get the file in a catch up pass at the end of the queue.
    */
-  private void transferFile(String source, String destination) throws IOException {
-    log.debug("Transfer " + source + " -> " + destination);
-    createPath(destination, sftp_clients[1]);
+  private void fanOut(TransferItem item, SFTPClient src, SFTPClient[] dsts, TransferQueue queue,
+      int workers) throws IOException {
+    List<TransferItem> targets = new ArrayList<TransferItem>();
+    boolean partial = false;
+    for (int d=1; d<hfs.length; d++) {
+      TransferItem t = new TransferItem(item.source, d, destinationPath(d, item.source));
+      t.attributes = item.attributes;
+      if (!isSkipped(t, dsts[d])) {
+        targets.add(t);
+        partial |= resuming(item) && journals[d].hasProgress(t.destination);
+      }
+    }
 
-    RemoteFile fileSource = sftp_clients[0].open(source);
-    RemoteFile fileDestination = sftp_clients[1].open(destination, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+    long length = item.attributes.getSize();
+    if (targets.isEmpty()) {
+      progress.skipped(length);
+      return;
+    }
+    // Copies the source server can make itself are not read here at all
+    List<TransferItem> onServer = new ArrayList<TransferItem>();
+    for (TransferItem t : targets) {
+      if (copiesOnServer(t.target)) {
+        onServer.add(t);
+      }
+    }
+    boolean allOnServer = onServer.size() == targets.size();
+    if (!onServer.isEmpty() && !allOnServer) {
+      targets.removeAll(onServer);
+      for (TransferItem t : onServer) {
+        progress.found(length);
+        queue.addFirst(t);
+      }
+    }
+    boolean split = shouldSplit(length, workers);
+    if (targets.size() < 2 || split || opts.checksum || partial || allOnServer) {
+      // The file is read once for every destination
+      for (int i=0; i<targets.size(); i++) {
+        if (i > 0) {
+          progress.found(length);
+        }
+        queue.addFirst(targets.get(i));
+      }
+      return;
+    }
+    log.debug("Fan out " + item.source + " to " + targets.size() + " destinations");
+    long start = System.nanoTime();
 
+    List<PreservingFile> files = new ArrayList<PreservingFile>();
+    RemoteFile fileSource = src.open(item.source);
     try {
-      RemoteFile.ReadAheadRemoteFileInputStream streamSource
-        = fileSource.new ReadAheadRemoteFileInputStream(16);
-      RemoteFile.RemoteFileOutputStream streamDestination
-        = fileDestination.new RemoteFileOutputStream(0, 16);
+      int bufSize = Integer.MAX_VALUE;
+      List<OutputStream> outs = new ArrayList<OutputStream>();
+      for (TransferItem t : targets) {
+        SFTPClient dst = dsts[t.target];
+        createPath(t.destination, dst, destinationIndexes[t.target]);
+        PreservingFile f = PreservingFile.open(dst, t.destination, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+        files.add(f);
+        OutputStream out = f.new RemoteFileOutputStream(0, tuners[t.target].window());
+        outs.add(bandwidth != null ? bandwidth.destination(t.target, out) : out);
+        bufSize = Math.min(bufSize, calculateMaxBufferSize(src, dst, f));
+      }
 
+      MessageDigest digest = null;
+      if (opts.verify || opts.manifest != null) {
+        digest = newDigest();
+      }
+      InputStream streamSource = fileSource.new ReadAheadRemoteFileInputStream(tuners[0].window());
+      Progress.Transfer listener = progress.start(item);
+      FanOutCopier fc = new FanOutCopier(bandwidth != null ? bandwidth.source(streamSource) : streamSource, outs)
+        .bufSize(bufSize)
+        .lagTimeout(opts.lagTimeout * 1000L)
+        .digest(digest)
+        .listener(listener);
+      List<Integer> dropped;
       try {
-        StreamCopier sc = new StreamCopier(streamSource, streamDestination);
-        sc.bufSize(calculateMaxBufferSize(fileSource, fileDestination));
-        sc.keepFlushing(false);
-        sc.listener(new ProgressBarListener(fileSource.length(), fileNameOnly(source)));
-        sc.copy();
+        dropped = fc.copy();
       } finally {
+        listener.done();
         streamSource.close();
-        streamDestination.close();
+      }
+      stats.bytes.addAndGet(length);
+      metrics.hostBytes[0].addAndGet(length);
+      metrics.fileRead();
+
+      byte[] hash = digest != null ? digest.digest() : null;
+      for (int i=0; i<targets.size(); i++) {
+        TransferItem t = targets.get(i);
+        if (dropped.contains(i)) {
+          log.debug(hfs[t.target].userHostSpec() + " fell behind on " + t.destination + ", copying it later");
+          progress.found(length);
+          queue.add(t);
+          continue;
+        }
+        outs.get(i).close();
+        if (hash != null) {
+          checkDigest(t.target, t.destination, length, hash, dsts[t.target]);
+        }
+        files.get(i).setAttributesOnClose(preserved(item.attributes));
+        journals[t.target].done(t.destination, length);
+        metrics.hostBytes[t.target].addAndGet(length);
+        metrics.fileDone(t.target, System.nanoTime() - start);
+      }
+      progress.fileDone(fileNameOnly(item.source), length);
+    } finally {
+      for (PreservingFile f : files) {
+        try {
+          f.close();
+        } catch (IOException e) {
+          log.debug("Could not close " + f.getPath() + ": " + e);
+        }
+      }
+      fileSource.close();
+    }
+  }
+
+  /**
+   * Whether the journal should be used to continue the item, with --resume
+   * or when it is tried again after a connection broke
+   */
+  private boolean resuming(TransferItem item) {
+    return opts.resume || item.attempts > 0;
+  }
+
+  /**
+   * Whether a whole file does not have to be transferred, because an earlier
+   * run finished it or, with --sync, it has not changed
+   */
+  private boolean isSkipped(TransferItem item, SFTPClient dst) throws IOException {
+    if (resuming(item)) {
+      long size = item.attributes != null ? item.attributes.getSize() : -1;
+      if (journals[item.target].isDone(item.destination, size)) {
+        log.debug("Already transferred " + item.destination);
+        return true;
+      }
+    }
+    if (opts.sync && isUnchanged(item, dst)) {
+      log.debug("Unchanged " + item.destination);
+      stats.skippedFiles.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Whether the destination has a file with the same size and modification
+   * time as the source
+   */
+  private boolean isUnchanged(TransferItem item, SFTPClient dst) throws IOException {
+    if (item.attributes == null) {
+      return false;
+    }
+    FileAttributes existing = destinationIndexes[item.target].stat(dst, item.destination);
+    return existing != null
+      && existing.getType() == FileMode.Type.REGULAR
+      && existing.getSize() == item.attributes.getSize()
+      && existing.getMtime() == item.attributes.getMtime();
+  }
+
+  /**
+   * Transfer only the blocks of a file that differ, according to hashes
+   * calculated by the servers.
+   *
+   * @return false if the servers could not hash the file, it then has to be
+   *         copied in full
+   */
+  private boolean transferChangedBlocks(TransferItem item, SFTPClient src, SFTPClient dst) throws IOException {
+    int d = item.target;
+    long started = System.nanoTime();
+    if (item.attributes == null || item.attributes.getSize() == 0
+        || !hashers[0].isSupported() || !hashers[d].isSupported()) {
+      return false;
+    }
+    FileAttributes existing = destinationIndexes[d].stat(dst, item.destination);
+    if (existing == null || existing.getType() != FileMode.Type.REGULAR) {
+      return false;
+    }
+
+    int blockSize = opts.checksumBlock;
+    long length = item.attributes.getSize();
+    long destinationLength = existing.getSize();
+    RemoteHash.Blocks sourceHashes = hashers[0].hash(src, item.source, length, blockSize, RemoteHash.ALGORITHMS);
+    if (sourceHashes == null) {
+      return false;
+    }
+    RemoteHash.Blocks destinationHashes = hashers[d].hash(dst, item.destination,
+        Math.min(length, destinationLength), blockSize, sourceHashes.algorithm);
+    if (destinationHashes == null || !destinationHashes.algorithm.equals(sourceHashes.algorithm)) {
+      return false;
+    }
+
+    RemoteFile fileSource = src.open(item.source);
+    try {
+      PreservingFile fileDestination = PreservingFile.open(dst, item.destination, EnumSet.of(OpenMode.WRITE));
+      try {
+        int bufSize = calculateMaxBufferSize(src, dst, fileDestination);
+        int blocks = sourceHashes.hashes.length;
+        int i = 0;
+        while (i < blocks) {
+          if (i < destinationHashes.hashes.length && Arrays.equals(sourceHashes.hashes[i], destinationHashes.hashes[i])) {
+            i++;
+            continue;
+          }
+          // Copy a run of changed blocks at once
+          int first = i;
+          while (i < blocks && (i >= destinationHashes.hashes.length
+                || !Arrays.equals(sourceHashes.hashes[i], destinationHashes.hashes[i]))) {
+            i++;
+          }
+          long start = (long) first * blockSize;
+          long end = Math.min(length, (long) i * blockSize);
+          log.debug("Block " + first + "-" + (i - 1) + " of " + item.destination + " changed");
+          copyRange(fileSource, fileDestination, d, item.destination, start, end - start, 0, bufSize, null, null);
+        }
+
+        if (destinationLength != length) {
+          fileDestination.setAttributes(new FileAttributes.Builder().withSize(length).build());
+        }
+        if (opts.verify || opts.manifest != null) {
+          checkOnServers(d, item.source, item.destination, length, src, dst);
+        }
+        fileDestination.setAttributesOnClose(preserved(item.attributes));
+      } finally {
+        fileDestination.close();
       }
     } finally {
       fileSource.close();
-      fileDestination.close();
+    }
+
+    journals[d].done(item.destination, length);
+    metrics.fileRead();
+    metrics.fileDone(d, System.nanoTime() - started);
+    Progress.Transfer listener = progress.start(item);
+    listener.reportProgress(length);
+    listener.done();
+    progress.fileDone(fileNameOnly(item.source), length);
+    return true;
+  }
+
+  private MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 is not available: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Compare the hash of what we copied with the hash the destination server
+   * calculates, if it can, and add it to the manifest.
+   */
+  private void checkDigest(int d, String destination, long length, byte[] digest, SFTPClient dst) throws IOException {
+    if (opts.verify) {
+      byte[] remote = hashers[d].hashWhole(dst, destination, length, "sha256");
+      if (remote == null) {
+        unchecked(d, destination, "not verified, the destination can't hash it");
+      } else if (!Arrays.equals(digest, remote)) {
+        throw new IOException("Checksum mismatch for " + destination + ": copied "
+            + Manifest.toHex(digest) + ", destination has " + Manifest.toHex(remote));
+      }
+    }
+    if (manifests[d] != null) {
+      manifests[d].add(destination, digest);
+    }
+  }
+
+  /**
+   * Check a file that was not hashed while it was copied, because it was
+   * split in ranges, continued from an earlier run or only had its changed
+   * blocks copied. The servers hash the source and the finished destination.
+   */
+  private void checkOnServers(int d, String source, String destination, long length, SFTPClient src,
+      SFTPClient dst) throws IOException {
+    byte[] sourceHash = hashers[0].hashWhole(src, source, length, "sha256");
+    byte[] destinationHash = null;
+    if (opts.verify || sourceHash == null) {
+      destinationHash = hashers[d].hashWhole(dst, destination, length, "sha256");
+    }
+    if (opts.verify) {
+      if (sourceHash == null || destinationHash == null) {
+        unchecked(d, destination, "not verified, the " + (sourceHash == null ? "source" : "destination") + " can't hash it");
+        return;
+      }
+      if (!Arrays.equals(sourceHash, destinationHash)) {
+        throw new IOException("Checksum mismatch for " + destination + ": source has "
+            + Manifest.toHex(sourceHash) + ", destination has " + Manifest.toHex(destinationHash));
+      }
+    }
+    if (manifests[d] != null) {
+      byte[] hash = sourceHash != null ? sourceHash : destinationHash;
+      if (hash == null) {
+        unchecked(d, destination, "not in the manifest, no server can hash it");
+      } else {
+        manifests[d].add(destination, hash);
+      }
+    }
+  }
+
+  /**
+   * A file that --verify could not check or --manifest could not list, the
+   * user is told about every one of them and the count at the end
+   */
+  private void unchecked(int d, String destination, String why) {
+    metrics.uncheckedFiles.incrementAndGet();
+    System.err.printf("Warning: %s on %s %s\n", destination, hfs[d].userHostSpec(), why);
+  }
+
+  /**
+   * The attributes of a source file to set on the destination: the access
+   * and modification times with --sync or --preserve, and the permissions
+   * with --preserve. The owner is not copied, the user ids of two servers
+   * need not match.
+   *
+   * @param attributes the source attributes from the listing, may be null
+   * @return null when there is nothing to set
+   */
+  private FileAttributes preserved(FileAttributes attributes) {
+    if (attributes == null || !(opts.sync || opts.preserve)) {
+      return null;
+    }
+    FileAttributes.Builder builder = new FileAttributes.Builder();
+    boolean any = false;
+    if (attributes.has(FileAttributes.Flag.ACMODTIME)) {
+      builder.withAtimeMtime(attributes.getAtime(), attributes.getMtime());
+      any = true;
+    }
+    if (opts.preserve && attributes.has(FileAttributes.Flag.MODE)) {
+      builder.withPermissions(attributes.getMode().getPermissionsMask());
+      any = true;
+    }
+    return any ? builder.build() : null;
+  }
+
+  /**
+   * Copy a file that fits in one packet with plain reads and one write,
+   * without the threads and read-ahead of the segment copier.
+   */
+  private void copySmall(RemoteFile fileSource, RemoteFile fileDestination, int d, long length, int bufSize,
+      StreamCopier.Listener listener, MessageDigest digest) throws IOException {
+    byte[] buf = BufferPool.SHARED.take(bufSize);
+    int len = 0;
+    try {
+      while (len < length) {
+        int r = fileSource.read(len, buf, len, (int) length - len);
+        if (r == -1) {
+          break; // The file shrunk since it was listed
+        }
+        len += r;
+      }
+      if (bandwidth != null) {
+        bandwidth.read(len);
+        bandwidth.write(d, len);
+      }
+      if (len > 0) {
+        fileDestination.write(0, buf, 0, len);
+      }
+      if (digest != null) {
+        digest.update(buf, 0, len);
+      }
+    } finally {
+      BufferPool.SHARED.give(buf);
+    }
+    stats.bytes.addAndGet(len);
+    metrics.copied(d, len);
+    if (listener != null && len > 0) {
+      listener.reportProgress(len);
+    }
+  }
+
+  /**
+   * Copy a range of bytes in segments, using the current windows for each.
+   *
+   * <p>Before each full sized segment one stat round trip per side is timed,
+   * after it the throughput is reported back so the windows can grow or
+   * shrink. Smaller segments are not measured, the extra round trips would
+   * cost more than they give for small files.
+   *
+   * <p>After each segment the destination has acknowledged all writes, which
+   * is recorded in the journal.
+   *
+   * <p>The read-ahead stream is kept from one segment to the next, so what
+   * it has read ahead past a segment boundary is not thrown away, and it
+   * doesn't read past the range. It is only opened again when the read
+   * window has been tuned to another size, which settles after the first
+   * few segments.
+   *
+   * @param d the destination host number
+   * @param destination the destination path, for the journal
+   * @param offset where the range starts
+   * @param length number of bytes in the range
+   * @param copied number of bytes at the start of the range that are already
+   *               copied
+   * @param listener gets the progress of the whole range, may be null
+   * @param digest gets all copied bytes in order, may be null
+   */
+  private void copyRange(RemoteFile fileSource, RemoteFile fileDestination, int d, String destination,
+      long offset, long length, long copied, int bufSize, final StreamCopier.Listener listener,
+      MessageDigest digest) throws IOException {
+    InputStream streamSource = null;
+    int readWindow = 0;
+    try {
+      while (copied < length) {
+        long segment = Math.min(SEGMENT_SIZE, length - copied);
+        boolean measure = segment == SEGMENT_SIZE;
+
+        if (measure) {
+          long before = System.nanoTime();
+          fileSource.fetchAttributes();
+          long middle = System.nanoTime();
+          fileDestination.fetchAttributes();
+          tuners[0].sampleRtt(middle - before);
+          tuners[d].sampleRtt(System.nanoTime() - middle);
+        }
+
+        if (streamSource == null || tuners[0].window() != readWindow) {
+          if (streamSource != null) {
+            streamSource.close();
+          }
+          readWindow = tuners[0].window();
+          streamSource = fileSource.new ReadAheadRemoteFileInputStream(readWindow, offset + copied, length - copied);
+        }
+        int writeWindow = tuners[d].window();
+        RemoteFile.RemoteFileOutputStream streamDestination
+          = fileDestination.new RemoteFileOutputStream(offset + copied, writeWindow);
+
+        long n;
+        long start = System.nanoTime();
+        try {
+          BoundedInputStream bounded = new BoundedInputStream(streamSource, segment);
+          bounded.setPropagateClose(false);
+          InputStream in   = bounded;
+          OutputStream out = streamDestination;
+          if (bandwidth != null) {
+            in  = bandwidth.source(in);
+            out = bandwidth.destination(d, out);
+          }
+          PipelinedCopier pc = new PipelinedCopier(in, out);
+          pc.bufSize(bufSize);
+          pc.digest(digest);
+          if (listener != null) {
+            final long base = copied;
+            pc.listener(new StreamCopier.Listener() {
+              public void reportProgress(long transferred) throws IOException {
+                listener.reportProgress(base + transferred);
+              }
+            });
+          }
+          n = pc.copy();
+          stats.add(pc, n);
+          metrics.copied(d, n);
+        } finally {
+          streamDestination.close();
+        }
+        if (measure) {
+          long elapsed = System.nanoTime() - start;
+          tuners[0].sampleThroughput(readWindow, n, elapsed, bufSize);
+          tuners[d].sampleThroughput(writeWindow, n, elapsed, bufSize);
+        }
+
+        copied += n;
+        journals[d].progress(destination, offset, offset + copied);
+        if (n < segment) {
+          break; // The file shrunk while we copied it
+        }
+      }
+    } finally {
+      if (streamSource != null) {
+        streamSource.close();
+      }
+    }
+  }
+
+  /**
+   * Whether a file should be split in ranges over the workers. With a chunk
+   * threshold files above it are split. With --chunk-threshold auto a file is
+   * split when it is more than a fair share per worker of the bytes that are
+   * left, so it would otherwise still run when the other workers are done.
+   */
+  private boolean shouldSplit(long length, int workers) {
+    if (workers < 2) {
+      return false;
+    }
+    if (opts.chunkThreshold > 0 && length > opts.chunkThreshold) {
+      return true;
+    }
+    return opts.autoSplit && length >= MIN_AUTO_SPLIT && length > progress.remainingBytes() / workers;
+  }
+
+  /**
+   * Put one range per worker of a large file first on the queue
+   */
+  private void splitInRanges(TransferItem item, long length, int workers, TransferQueue queue) {
+    long rangeLength = (length + workers - 1) / workers;
+    int ranges = (int) ((length + rangeLength - 1) / rangeLength);
+    log.debug("Splitting " + item + " in " + ranges + " ranges of " + rangeLength + " bytes");
+
+    AtomicInteger rangesLeft = new AtomicInteger(ranges);
+    for (int r=ranges-1; r>=0; r--) {
+      long offset = r * rangeLength;
+      queue.addFirst(new TransferItem(item, offset, Math.min(rangeLength, length - offset), length, rangesLeft));
     }
   }
 
   /**
-   * Helper to create directories if needed on target
+   * Helper to create directories if needed on target, directories that we
+   * have already created or found are remembered so each is only created once
    */
-  private void createPath(String path, SFTPClient client) {
+  private void createPath(String path, SFTPClient client, DestinationIndex index) {
     path = normalizePath(path);
     log.debug("createPath based on " + path);
 
@@ -327,13 +1488,24 @@ public class SftpSquid {
     if (dir.charAt(0) != '/') {
       dir = "./" + dir;
     }
+    if (index.isKnownDir(dir)) {
+      return;
+    }
 
     log.debug("createPath: " + dir);
     try {
       client.mkdirs(dir);
     } catch (IOException e) {
-      log.debug("Could not createPath: " + e);
+      // Another worker might have created part of the path at the same time
+      try {
+        client.mkdirs(dir);
+      } catch (IOException e2) {
+        log.debug("Could not createPath: " + e2);
+        return;
+      }
     }
+
+    index.addKnownDir(dir);
   }
 
   /**
@@ -346,10 +1518,10 @@ public class SftpSquid {
 
   /* This code is taken from the library docs and adjusted to match the
    * situation we have with two remote servers */
-  private int calculateMaxBufferSize(RemoteFile f1, RemoteFile f2) {
-    int remoteMaxPacketSize = sftp_clients[0].getSFTPEngine().getSubsystem().getRemoteMaxPacketSize();
-    if ( remoteMaxPacketSize > sftp_clients[1].getSFTPEngine().getSubsystem().getRemoteMaxPacketSize() ) {
-      remoteMaxPacketSize = sftp_clients[1].getSFTPEngine().getSubsystem().getRemoteMaxPacketSize();
+  private int calculateMaxBufferSize(SFTPClient src, SFTPClient dst, RemoteFile f2) {
+    int remoteMaxPacketSize = src.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize();
+    if ( remoteMaxPacketSize > dst.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize() ) {
+      remoteMaxPacketSize = dst.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize();
     }
     int packetOverhead = f2.getOutgoingPacketOverhead();
     return remoteMaxPacketSize - packetOverhead;
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Whole file transfer items on local disk, read back in the order they were
+ * written.
+ *
+ * <p>Paths are written as the number of characters they share with the
+ * previous path followed by the rest, so the files of a directory take little
+ * more than their names. Attributes are kept as numbers, only the ones the
+ * listing had.
+ */
+class SpillFile {
+  private static final int HAS_DESTINATION = 1;
+  private static final int HAS_SIZE = 2;
+  private static final int HAS_TIMES = 4;
+  private static final int HAS_MODE = 8;
+  private static final int HAS_OWNER = 16;
+
+  private File file;
+  private DataOutputStream out;
+  private DataInputStream in;
+  private long written = 0;
+  private long read = 0;
+  /** Items that are on disk and not just in the buffer */
+  private long flushed = 0;
+  /** The previous paths, that the next ones are written relative to */
+  private String lastSourceOut = "";
+  private String lastDestinationOut = "";
+  private String lastSourceIn = "";
+  private String lastDestinationIn = "";
+
+  SpillFile() throws IOException {
+    file = File.createTempFile("sftpsquid-queue", ".spill");
+    file.deleteOnExit();
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+  }
+
+  /**
+   * Number of items written and not yet read
+   */
+  public long size() {
+    return written - read;
+  }
+
+  /**
+   * Add an item at the end
+   */
+  public void write(TransferItem item) throws IOException {
+    FileAttributes a = item.attributes;
+    int flags = 0;
+    if (item.destination != null) {
+      flags |= HAS_DESTINATION;
+    }
+    if (a != null) {
+      flags |= a.has(FileAttributes.Flag.SIZE) ? HAS_SIZE : 0;
+      flags |= a.has(FileAttributes.Flag.ACMODTIME) ? HAS_TIMES : 0;
+      flags |= a.has(FileAttributes.Flag.MODE) ? HAS_MODE : 0;
+      flags |= a.has(FileAttributes.Flag.UIDGID) ? HAS_OWNER : 0;
+    }
+    out.writeByte(flags);
+    writeNumber(item.target + 1);
+    lastSourceOut = writePath(item.source, lastSourceOut);
+    if (item.destination != null) {
+      lastDestinationOut = writePath(item.destination, lastDestinationOut);
+    }
+    if ((flags & HAS_SIZE) != 0) {
+      writeNumber(a.getSize());
+    }
+    if ((flags & HAS_TIMES) != 0) {
+      writeNumber(a.getAtime());
+      writeNumber(a.getMtime());
+    }
+    if ((flags & HAS_MODE) != 0) {
+      writeNumber(a.getMode().getPermissionsMask());
+    }
+    if ((flags & HAS_OWNER) != 0) {
+      writeNumber(a.getUID() & 0xffffffffL);
+      writeNumber(a.getGID() & 0xffffffffL);
+    }
+    written++;
+  }
+
+  /**
+   * Take the first item that has not been read, only call when size() is
+   * more than 0
+   */
+  public TransferItem read() throws IOException {
+    if (in == null) {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+    if (read >= flushed) {
+      // Whatever is read must be on disk
+      out.flush();
+      flushed = written;
+    }
+    int flags = in.readUnsignedByte();
+    int target = (int) readNumber() - 1;
+    String source = lastSourceIn = readPath(lastSourceIn);
+    String destination = null;
+    if ((flags & HAS_DESTINATION) != 0) {
+      destination = lastDestinationIn = readPath(lastDestinationIn);
+    }
+    TransferItem item = new TransferItem(source, target, destination);
+    if ((flags & ~HAS_DESTINATION) != 0) {
+      FileAttributes.Builder b = new FileAttributes.Builder();
+      if ((flags & HAS_SIZE) != 0) {
+        b.withSize(readNumber());
+      }
+      if ((flags & HAS_TIMES) != 0) {
+        b.withAtimeMtime(readNumber(), readNumber());
+      }
+      if ((flags & HAS_MODE) != 0) {
+        // Only files are queued. Without a mode there is none to give, or
+        // the MODE flag would make --preserve set the permissions to 000.
+        b.withType(FileMode.Type.REGULAR).withPermissions((int) readNumber());
+      }
+      if ((flags & HAS_OWNER) != 0) {
+        b.withUIDGID((int) readNumber(), (int) readNumber());
+      }
+      item.attributes = b.build();
+    }
+    read++;
+    return item;
+  }
+
+  /**
+   * Close and remove the file
+   */
+  public void delete() {
+    try {
+      out.close();
+      if (in != null) {
+        in.close();
+      }
+    } catch (IOException e) {
+      // Nothing to do, it is deleted anyway
+    }
+    file.delete();
+  }
+
+  private String writePath(String path, String last) throws IOException {
+    int shared = 0;
+    int max = Math.min(path.length(), last.length());
+    while (shared < max && path.charAt(shared) == last.charAt(shared)) {
+      shared++;
+    }
+    writeNumber(shared);
+    out.writeUTF(path.substring(shared));
+    return path;
+  }
+
+  private String readPath(String last) throws IOException {
+    int shared = (int) readNumber();
+    return last.substring(0, shared) + in.readUTF();
+  }
+
+  /**
+   * Seven bits per byte, the high bit set on all but the last byte
+   */
+  private void writeNumber(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private long readNumber() throws IOException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+}
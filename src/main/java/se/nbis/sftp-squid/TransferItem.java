@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One file, or a byte range of a file, to transfer, as it is put on the work
+ * queue
+ */
+class TransferItem {
+  /** Path on the source server */
+  public String source;
+  /** Host number of the destination, or ALL to copy to every destination */
+  public int target;
+  /** Path on the destination server, null when the target is ALL */
+  public String destination;
+  /** Attributes of the source file from the listing, may be null */
+  public FileAttributes attributes;
+  /** Where in the file the range starts */
+  public long offset = 0;
+  /** Number of bytes in the range, -1 means the whole file */
+  public long length = -1;
+  /** Size of the whole file, only known for ranges */
+  public long fileLength = -1;
+  /** Ranges of the same file that are not done yet, shared between them */
+  public AtomicInteger rangesLeft;
+  /** Times this item failed on a broken connection and was tried again */
+  public int attempts = 0;
+  /** Bytes of the item counted in the progress so far, by all attempts */
+  public long reported = 0;
+
+  /** Target for items that go to all destinations at once */
+  static final int ALL = -1;
+
+  TransferItem(String source, int target, String destination) {
+    this.source      = source;
+    this.target      = target;
+    this.destination = destination;
+  }
+
+  /**
+   * Create a byte range of a file
+   *
+   * @param file the whole file item
+   * @param offset where the range starts
+   * @param length number of bytes in the range
+   */
+  TransferItem(TransferItem file, long offset, long length, long fileLength, AtomicInteger rangesLeft) {
+    this(file.source, file.target, file.destination);
+    this.attributes = file.attributes;
+    this.offset     = offset;
+    this.length     = length;
+    this.fileLength = fileLength;
+    this.rangesLeft = rangesLeft;
+  }
+
+  /**
+   * Whether this is the whole file and not just a range of it
+   */
+  public boolean isWholeFile() {
+    return length == -1;
+  }
+
+  /**
+   * toString!!
+   */
+  public String toString() {
+    if (isWholeFile()) {
+      return "[TransferItem " + source + " -> " + destination + "]";
+    }
+    return "[TransferItem " + source + " -> " + destination + " " + offset + "+" + length + "]";
+  }
+}
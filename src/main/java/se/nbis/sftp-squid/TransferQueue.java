@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work queue shared by the transfer workers.
+ *
+ * <p>An item counts as pending until a worker calls done() on it. The queue is
+ * only finished when nothing is pending, since a worker can split a file
+ * into ranges and put them back on the queue, and the directory listing
+ * adds files while the workers are already transferring.
+ *
+ * <p>Items added with addFirst() are always taken first. The others are
+ * taken in the order they were found, or by size: the largest file known so
+ * far goes first, so a huge file doesn't start last and run alone at the
+ * end, and every other take is a small file, so the channels have something
+ * quick to do while the large files stream.
+ *
+ * <p>The listing is usually much faster than the transfer, so for a large
+ * tree most files wait here. Only a limited number of items are kept in
+ * memory, when there are more the whole files that are added at the end go
+ * to a SpillFile and are read back as the workers catch up. Ordering by
+ * size only applies to the files in memory.
+ */
+class TransferQueue {
+  /** Items kept in memory, unless given */
+  static final int DEFAULT_MEMORY_ITEMS = 100000;
+  /** Files below this size take a few round trips, their order matters little */
+  static final long SMALL_FILE_SIZE = 1024 * 1024;
+
+  /** Items from addFirst(), taken before anything else */
+  private Deque<TransferItem> front = new ArrayDeque<TransferItem>();
+  /** Everything else in order, or the small files when ordering by size */
+  private Deque<TransferItem> items = new ArrayDeque<TransferItem>();
+  /** The larger files, largest first, only used when ordering by size */
+  private PriorityQueue<TransferItem> large = new PriorityQueue<TransferItem>(64, new Comparator<TransferItem>() {
+    public int compare(TransferItem a, TransferItem b) {
+      return Long.compare(size(b), size(a));
+    }
+  });
+  private boolean bySize;
+  /** Counts takes, so small and large files can take turns */
+  private long takes = 0;
+  private int memoryItems;
+  /** Items that did not fit in memory, null when there are none */
+  private SpillFile spill;
+  /** Items added but not yet done */
+  private AtomicInteger pending = new AtomicInteger(0);
+  private volatile boolean aborted = false;
+
+  TransferQueue() {
+    this(DEFAULT_MEMORY_ITEMS, false);
+  }
+
+  /**
+   * @param memoryItems number of items kept in memory before the rest go to
+   *                    a local file
+   * @param bySize take the largest files first instead of in order
+   */
+  TransferQueue(int memoryItems, boolean bySize) {
+    this.memoryItems = memoryItems;
+    this.bySize      = bySize;
+  }
+
+  /**
+   * Bytes to copy for an item, 0 if the listing didn't say
+   */
+  static long size(TransferItem item) {
+    if (!item.isWholeFile()) {
+      return item.length;
+    }
+    FileAttributes a = item.attributes;
+    return a != null && a.has(FileAttributes.Flag.SIZE) ? a.getSize() : 0;
+  }
+
+  private int inMemory() {
+    return front.size() + items.size() + large.size();
+  }
+
+  /**
+   * Add an item to the end of the queue
+   */
+  public synchronized void add(TransferItem item) throws IOException {
+    pending.incrementAndGet();
+    // Once something is spilled everything after it is too, to keep the order
+    if (item.isWholeFile() && (spill != null || inMemory() >= memoryItems)) {
+      if (spill == null) {
+        spill = new SpillFile();
+      }
+      spill.write(item);
+      return;
+    }
+    put(item);
+    notifyAll();
+  }
+
+  private void put(TransferItem item) {
+    if (bySize && size(item) >= SMALL_FILE_SIZE) {
+      large.add(item);
+    } else {
+      items.addLast(item);
+    }
+  }
+
+  /**
+   * Add an item to the front of the queue, so it is the next to be taken
+   */
+  public synchronized void addFirst(TransferItem item) {
+    pending.incrementAndGet();
+    front.addFirst(item);
+    notifyAll();
+  }
+
+  /**
+   * Move items from the spill file to memory, until it is full
+   */
+  private void refill() throws IOException {
+    while (inMemory() < memoryItems && spill.size() > 0) {
+      put(spill.read());
+    }
+    if (spill.size() == 0) {
+      spill.delete();
+      spill = null;
+    }
+  }
+
+  /**
+   * Tell the queue that more items might come, so the workers do not stop
+   * when it runs empty. Must be followed by a call to producerDone().
+   */
+  public void startProducer() {
+    pending.incrementAndGet();
+  }
+
+  /**
+   * All items from a producer have been added
+   */
+  public synchronized void producerDone() {
+    if (pending.decrementAndGet() == 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Get the next item to transfer.
+   *
+   * @return the next item or null when all work is done or aborted
+   */
+  public synchronized TransferItem take() throws InterruptedException, IOException {
+    while (!aborted) {
+      if (spill != null && inMemory() <= memoryItems / 2) {
+        refill();
+      }
+      TransferItem item = next();
+      if (item != null) {
+        return item;
+      }
+      if (pending.get() == 0) {
+        return null;
+      }
+      wait();
+    }
+    return null;
+  }
+
+  private TransferItem next() {
+    if (!front.isEmpty()) {
+      return front.removeFirst();
+    }
+    if (large.isEmpty() || (!items.isEmpty() && takes++ % 2 == 1)) {
+      return items.pollFirst();
+    }
+    return large.poll();
+  }
+
+  /**
+   * Mark an item as finished
+   */
+  public synchronized void done(TransferItem item) {
+    // The workers that wait have to see that everything is done
+    if (pending.decrementAndGet() == 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stop handing out work, used when one of the workers fail
+   */
+  public synchronized void abort() {
+    aborted = true;
+    front.clear();
+    items.clear();
+    large.clear();
+    if (spill != null) {
+      spill.delete();
+      spill = null;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Number of items waiting to be taken
+   */
+  public synchronized long size() {
+    return inMemory() + (spill != null ? spill.size() : 0);
+  }
+}
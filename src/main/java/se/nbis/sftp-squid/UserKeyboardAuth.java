@@ -18,7 +18,6 @@ package se.nbis.sftpsquid;
 import net.schmizz.sshj.userauth.method.ChallengeResponseProvider;
 import net.schmizz.sshj.userauth.password.Resource;
 
-import java.io.Console;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -28,6 +27,8 @@ import java.util.List;
 class UserKeyboardAuth implements ChallengeResponseProvider {
   /** Information about the current host, used to show the user what host they are connecting to */
   private HostFileInfo hf;
+  /** Whether the password given up front has been used, it is only tried once */
+  private boolean passwordUsed = false;
 
   /**
    * Construct a new object, we use the HostFileInfo to show the user what
@@ -56,16 +57,19 @@ class UserKeyboardAuth implements ChallengeResponseProvider {
 
   /**
    * Get user response from questions the server sends us, such as passwords.
+   * A password prompt is answered with the password given up front, other
+   * questions, like a second factor, are asked.
    *
    * @param prompt the prompt that the server sent us
    * @param echo   whether to echo what the user types to the screen or not
    */
   @Override
   public char[] getResponse(String prompt, boolean echo) {
-    System.out.printf("[%s] %s", hf.userHostSpec(), prompt);
-    Console cons = System.console();
-    char[] resp = cons.readPassword();
-    return resp;
+    if (!echo && !passwordUsed && hf.password != null && prompt.toLowerCase().contains("password")) {
+      passwordUsed = true;
+      return hf.password.clone();
+    }
+    return Prompt.readPassword(String.format("[%s] %s", hf.userHostSpec(), prompt));
   }
 
   /**
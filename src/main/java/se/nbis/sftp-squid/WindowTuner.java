@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Number of outstanding SFTP requests to use against one host.
+ *
+ * <p>A stream with W requests of P bytes in flight can at most move W*P bytes
+ * per round trip. After each segment we compare the measured throughput with
+ * that limit: if we got close to it the window is what holds us back and it
+ * is doubled, if we were far below it something else is the bottleneck and
+ * the window shrinks again.
+ */
+class WindowTuner {
+  static final int MIN_WINDOW = 16;
+  static final int MAX_WINDOW = 512;
+
+  private Logger log = Logger.getLogger(getClass());
+  /** Name used in log messages */
+  private String name;
+  private int window = MIN_WINDOW;
+  /** Smoothed round trip time, -1 until the first sample */
+  private double rttNanos = -1;
+
+  WindowTuner(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The window to use for the next segment
+   */
+  public synchronized int window() {
+    return window;
+  }
+
+  /**
+   * Smoothed round trip time in nanoseconds, or -1 if not measured yet
+   */
+  public synchronized double rtt() {
+    return rttNanos;
+  }
+
+  /**
+   * Add a measured round trip time
+   */
+  public synchronized void sampleRtt(long nanos) {
+    if (rttNanos < 0) {
+      rttNanos = nanos;
+    } else {
+      rttNanos = 0.8 * rttNanos + 0.2 * nanos;
+    }
+  }
+
+  /**
+   * Adjust the window after a segment has been copied
+   *
+   * @param usedWindow the window the segment was copied with
+   * @param bytes number of bytes in the segment
+   * @param nanos how long the segment took
+   * @param packetSize bytes per request
+   */
+  public synchronized void sampleThroughput(int usedWindow, long bytes, long nanos, int packetSize) {
+    if (rttNanos <= 0 || nanos <= 0 || bytes == 0) {
+      return;
+    }
+    double limit = (double) usedWindow * packetSize / rttNanos;
+    double ratio = ((double) bytes / nanos) / limit;
+
+    int old = window;
+    if (ratio > 0.8) {
+      window = Math.min(MAX_WINDOW, usedWindow * 2);
+    } else if (ratio < 0.4) {
+      window = Math.max(MIN_WINDOW, usedWindow * 3 / 4);
+    }
+    if (window != old) {
+      log.debug(String.format("%s: rtt %.1fms, %.0f%% of window limit, window %d -> %d",
+            name, rttNanos / 1e6, 100 * ratio, old, window));
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import junit.framework.TestCase;
+
+/**
+ * Sizes of the buffers and which ones are kept
+ */
+public class BufferPoolTest extends TestCase {
+  public void testRoundsUpToPowerOfTwo() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    assertEquals(1, pool.take(1).length);
+    assertEquals(1024, pool.take(1000).length);
+    assertEquals(1024, pool.take(1024).length);
+    assertEquals(2048, pool.take(1025).length);
+    assertEquals(BufferPool.MAX_POOLED_SIZE, pool.take(BufferPool.MAX_POOLED_SIZE).length);
+  }
+
+  public void testReusesBuffers() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    byte[] buf = pool.take(32 * 1024);
+    pool.give(buf);
+    assertEquals(32 * 1024, pool.kept());
+    assertSame(buf, pool.take(20000));
+    assertEquals(0, pool.kept());
+    assertNotSame(buf, pool.take(20000));
+  }
+
+  public void testOnlyTheSameSizeIsReused() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    byte[] buf = pool.take(4096);
+    pool.give(buf);
+    assertNotSame(buf, pool.take(8192));
+    assertNotSame(buf, pool.take(2048));
+    assertSame(buf, pool.take(4096));
+  }
+
+  public void testKeepsAtMostMaxBytes() {
+    BufferPool pool = new BufferPool(2048);
+    byte[] a = pool.take(1024);
+    byte[] b = pool.take(1024);
+    byte[] c = pool.take(1024);
+    pool.give(a);
+    pool.give(b);
+    pool.give(c);
+    assertEquals(2048, pool.kept());
+
+    BufferPool none = new BufferPool(0);
+    none.give(none.take(1024));
+    assertEquals(0, none.kept());
+  }
+
+  public void testLargeBuffersAreNotPooled() {
+    BufferPool pool = new BufferPool(Long.MAX_VALUE);
+    byte[] buf = pool.take(BufferPool.MAX_POOLED_SIZE + 1);
+    assertEquals(BufferPool.MAX_POOLED_SIZE + 1, buf.length);
+    pool.give(buf);
+    assertEquals(0, pool.kept());
+  }
+
+  public void testForeignBuffersAreNotKept() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    pool.give(new byte[1000]);
+    assertEquals(0, pool.kept());
+    assertEquals(1024, pool.take(1000).length);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Files are found in cached listings, and what is kept is bounded
+ */
+public class DestinationIndexTest extends TestCase {
+  /**
+   * An index over a made up destination where every directory has the files
+   * a and b, remembering which directories were listed
+   */
+  private static class FakeIndex extends DestinationIndex {
+    List<String> listed = new ArrayList<String>();
+
+    FakeIndex(int maxDirs) {
+      super(maxDirs, new AtomicLong());
+    }
+
+    Map<String, FileAttributes> list(SFTPClient c, String dir) {
+      listed.add(dir);
+      Map<String, FileAttributes> listing = new HashMap<String, FileAttributes>();
+      listing.put("a", new FileAttributes.Builder().withSize(1).build());
+      listing.put("b", new FileAttributes.Builder().withSize(2).build());
+      return listing;
+    }
+  }
+
+  public void testOneListingPerDirectory() throws Exception {
+    FakeIndex index = new FakeIndex(10);
+    assertEquals(1, index.stat(null, "/data/a").getSize());
+    assertEquals(2, index.stat(null, "/data/b").getSize());
+    assertNull(index.stat(null, "/data/c"));
+    assertEquals(1, index.stat(null, "/data/sub/a").getSize());
+    assertEquals(1, index.stat(null, "a").getSize());
+    assertEquals(1, index.stat(null, "/a").getSize());
+    assertEquals(4, index.listed.size());
+    assertEquals("/data", index.listed.get(0));
+    assertEquals("/data/sub", index.listed.get(1));
+    assertEquals(".", index.listed.get(2));
+    assertEquals("/", index.listed.get(3));
+  }
+
+  public void testLeastRecentlyUsedListingIsDropped() throws Exception {
+    FakeIndex index = new FakeIndex(2);
+    index.stat(null, "/1/a");
+    index.stat(null, "/2/a");
+    index.stat(null, "/1/b");
+    index.stat(null, "/3/a");
+    assertEquals(3, index.listed.size());
+    index.stat(null, "/1/a");
+    assertEquals(3, index.listed.size());
+    index.stat(null, "/2/a");
+    assertEquals(4, index.listed.size());
+  }
+
+  public void testSizedForTheQueue() {
+    AtomicLong nanos = new AtomicLong();
+    assertEquals(DestinationIndex.MAX_DIRS, DestinationIndex.forQueue(100000, false, nanos).maxDirs);
+    assertEquals(100000, DestinationIndex.forQueue(100000, true, nanos).maxDirs);
+    assertEquals(DestinationIndex.MAX_DIRS, DestinationIndex.forQueue(10, true, nanos).maxDirs);
+  }
+
+  public void testKnownDirsIncludeParents() {
+    DestinationIndex index = new FakeIndex(10);
+    assertFalse(index.isKnownDir("/data/run1"));
+    index.addKnownDir("/data/run1/lane2");
+    assertTrue(index.isKnownDir("/data/run1/lane2"));
+    assertTrue(index.isKnownDir("/data/run1"));
+    assertTrue(index.isKnownDir("/data"));
+    assertFalse(index.isKnownDir("/data/run2"));
+    index.addKnownDir("./rel/dir");
+    assertTrue(index.isKnownDir("./rel"));
+    assertTrue(index.isKnownDir("."));
+  }
+
+  public void testKnownDirsAreBounded() {
+    DestinationIndex index = new FakeIndex(10);
+    for (int i=0; i<DestinationIndex.MAX_KNOWN_DIRS + 10; i++) {
+      index.addKnownDir("/d" + i);
+    }
+    assertFalse(index.isKnownDir("/d0"));
+    assertTrue(index.isKnownDir("/d" + (DestinationIndex.MAX_KNOWN_DIRS + 9)));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import junit.framework.TestCase;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Waiting times of the token bucket, with margins for slow machines
+ */
+public class RateLimiterTest extends TestCase {
+  private static final long MS = 1000 * 1000;
+
+  public void testNoLimit() throws Exception {
+    RateLimiter limiter = new RateLimiter(0);
+    long start = System.nanoTime();
+    limiter.acquire(Long.MAX_VALUE / 2000000000L);
+    assertTrue(System.nanoTime() - start < 100 * MS);
+  }
+
+  public void testBurstThenRate() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000000);
+    long start = System.nanoTime();
+    // A quarter of a second may go at once
+    limiter.acquire(200000);
+    assertTrue("burst had to wait", System.nanoTime() - start < 100 * MS);
+
+    start = System.nanoTime();
+    limiter.acquire(250000);
+    limiter.acquire(250000);
+    long waited = System.nanoTime() - start;
+    assertTrue("waited only " + waited / MS + " ms", waited >= 350 * MS);
+    assertTrue("waited " + waited / MS + " ms", waited < 2000 * MS);
+  }
+
+  public void testBurstIsOnlySavedOnce() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000000);
+    limiter.acquire(250000);
+    Thread.sleep(600);
+    long start = System.nanoTime();
+    limiter.acquire(250000);
+    limiter.acquire(250000);
+    long waited = System.nanoTime() - start;
+    assertTrue("waited only " + waited / MS + " ms", waited >= 150 * MS);
+  }
+
+  public void testRemovingTheLimitWakesWaiters() throws Exception {
+    final RateLimiter limiter = new RateLimiter(1000);
+    limiter.acquire(250);
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          limiter.acquire(60000);
+        } catch (InterruptedIOException e) {
+          // The test fails on the join below
+        }
+      }
+    };
+    waiter.setDaemon(true);
+    waiter.start();
+    waiter.join(200);
+    assertTrue(waiter.isAlive());
+    limiter.setRate(0);
+    waiter.join(5000);
+    assertFalse(waiter.isAlive());
+    assertEquals(0, limiter.getRate());
+  }
+
+  public void testInterrupt() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000);
+    Thread.currentThread().interrupt();
+    try {
+      limiter.acquire(60000);
+      fail("not interrupted");
+    } catch (InterruptedIOException e) {
+      assertTrue(Thread.interrupted());
+    }
+  }
+}
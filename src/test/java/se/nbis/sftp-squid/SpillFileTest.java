@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+
+import junit.framework.TestCase;
+
+/**
+ * Items read back from a SpillFile are the ones written
+ */
+public class SpillFileTest extends TestCase {
+  private SpillFile spill;
+
+  protected void setUp() throws Exception {
+    spill = new SpillFile();
+  }
+
+  protected void tearDown() {
+    spill.delete();
+  }
+
+  public void testPathsAndTargets() throws Exception {
+    spill.write(new TransferItem("/data/run1/a.fastq", 1, "/backup/run1/a.fastq"));
+    spill.write(new TransferItem("/data/run1/b.fastq", 2, "/backup/run1/b.fastq"));
+    spill.write(new TransferItem("/data/run2/a.fastq", TransferItem.ALL, null));
+    spill.write(new TransferItem("/other", 1, "/elsewhere/other"));
+    assertEquals(4, spill.size());
+
+    TransferItem item = spill.read();
+    assertEquals("/data/run1/a.fastq", item.source);
+    assertEquals(1, item.target);
+    assertEquals("/backup/run1/a.fastq", item.destination);
+    assertNull(item.attributes);
+    assertTrue(item.isWholeFile());
+
+    item = spill.read();
+    assertEquals("/data/run1/b.fastq", item.source);
+    assertEquals(2, item.target);
+    assertEquals("/backup/run1/b.fastq", item.destination);
+
+    item = spill.read();
+    assertEquals("/data/run2/a.fastq", item.source);
+    assertEquals(TransferItem.ALL, item.target);
+    assertNull(item.destination);
+
+    item = spill.read();
+    assertEquals("/other", item.source);
+    assertEquals("/elsewhere/other", item.destination);
+    assertEquals(0, spill.size());
+  }
+
+  public void testAllAttributes() throws Exception {
+    TransferItem written = new TransferItem("/f", 1, "/g");
+    written.attributes = new FileAttributes.Builder()
+      .withType(FileMode.Type.REGULAR)
+      .withSize(5L * 1024 * 1024 * 1024 * 1024)
+      .withAtimeMtime(1500000000L, 4000000000L)
+      .withPermissions(0640)
+      .withUIDGID(-2, 1000)
+      .build();
+    spill.write(written);
+
+    FileAttributes a = spill.read().attributes;
+    assertTrue(a.has(FileAttributes.Flag.SIZE));
+    assertEquals(5L * 1024 * 1024 * 1024 * 1024, a.getSize());
+    assertTrue(a.has(FileAttributes.Flag.ACMODTIME));
+    assertEquals(1500000000L, a.getAtime());
+    assertEquals(4000000000L, a.getMtime());
+    assertTrue(a.has(FileAttributes.Flag.MODE));
+    assertEquals(0640, a.getMode().getPermissionsMask());
+    assertEquals(FileMode.Type.REGULAR, a.getType());
+    assertTrue(a.has(FileAttributes.Flag.UIDGID));
+    assertEquals(-2, a.getUID());
+    assertEquals(1000, a.getGID());
+  }
+
+  public void testOnlyTheAttributesTheListingHad() throws Exception {
+    TransferItem written = new TransferItem("/f", 1, "/g");
+    written.attributes = new FileAttributes.Builder().withSize(0).withAtimeMtime(1, 2).build();
+    spill.write(written);
+
+    FileAttributes a = spill.read().attributes;
+    assertTrue(a.has(FileAttributes.Flag.SIZE));
+    assertEquals(0, a.getSize());
+    assertTrue(a.has(FileAttributes.Flag.ACMODTIME));
+    // Otherwise --preserve would set the permissions to 000
+    assertFalse(a.has(FileAttributes.Flag.MODE));
+    assertFalse(a.has(FileAttributes.Flag.UIDGID));
+  }
+
+  public void testReadWhileWriting() throws Exception {
+    for (int i=0; i<1000; i++) {
+      TransferItem item = new TransferItem("/dir/" + i, 1, null);
+      item.attributes = new FileAttributes.Builder().withSize(i).build();
+      spill.write(item);
+      if (i % 3 == 0) {
+        TransferItem read = spill.read();
+        assertEquals("/dir/" + (i / 3), read.source);
+        assertEquals(i / 3, read.attributes.getSize());
+      }
+    }
+    assertEquals(1000 - 334, spill.size());
+    for (int i=334; i<1000; i++) {
+      assertEquals("/dir/" + i, spill.read().source);
+    }
+    assertEquals(0, spill.size());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Order of the items, waiting for producers and workers, and spilling
+ */
+public class TransferQueueTest extends TestCase {
+  private static final long MB = 1024 * 1024;
+
+  private static TransferItem file(String source, long size) {
+    TransferItem item = new TransferItem(source, 1, "/dest" + source);
+    item.attributes = new FileAttributes.Builder().withSize(size).build();
+    return item;
+  }
+
+  public void testListingOrder() throws Exception {
+    TransferQueue queue = new TransferQueue(100, false);
+    queue.add(file("/a", 1));
+    queue.add(file("/b", 100 * MB));
+    queue.add(file("/c", 10));
+    assertEquals(3, queue.size());
+    assertEquals("/a", queue.take().source);
+    assertEquals("/b", queue.take().source);
+    assertEquals("/c", queue.take().source);
+    assertEquals(0, queue.size());
+  }
+
+  public void testLargestFirstTakingTurnsWithSmall() throws Exception {
+    TransferQueue queue = new TransferQueue(100, true);
+    queue.add(file("/small1", 10));
+    queue.add(file("/large1", 10 * MB));
+    queue.add(file("/small2", 20));
+    queue.add(file("/large2", 100 * MB));
+    assertEquals("/large2", queue.take().source);
+    assertEquals("/small1", queue.take().source);
+    assertEquals("/large1", queue.take().source);
+    assertEquals("/small2", queue.take().source);
+  }
+
+  public void testAddFirstIsTakenFirst() throws Exception {
+    TransferQueue queue = new TransferQueue(100, true);
+    queue.add(file("/large", 100 * MB));
+    TransferItem range = new TransferItem(file("/huge", 10000 * MB), 0, MB, 10000 * MB, new AtomicInteger(1));
+    queue.addFirst(range);
+    assertSame(range, queue.take());
+    assertEquals("/large", queue.take().source);
+  }
+
+  public void testRangeSize() {
+    TransferItem whole = file("/f", 10 * MB);
+    assertEquals(10 * MB, TransferQueue.size(whole));
+    assertEquals(MB, TransferQueue.size(new TransferItem(whole, MB, MB, 10 * MB, new AtomicInteger(10))));
+    assertEquals(0, TransferQueue.size(new TransferItem("/g", 1, "/dest/g")));
+  }
+
+  public void testEmptyWhenAllDone() throws Exception {
+    TransferQueue queue = new TransferQueue();
+    queue.add(file("/a", 1));
+    TransferItem item = queue.take();
+    queue.done(item);
+    assertNull(queue.take());
+  }
+
+  public void testWaitsForItemsInProgress() throws Exception {
+    final TransferQueue queue = new TransferQueue();
+    queue.add(file("/a", 1));
+    final TransferItem item = queue.take();
+
+    // The worker with /a may still split it and add the ranges
+    Taker taker = new Taker(queue);
+    taker.start();
+    taker.join(200);
+    assertTrue("take returned while an item was in progress", taker.isAlive());
+
+    queue.addFirst(new TransferItem(item, 0, 1, 1, new AtomicInteger(1)));
+    queue.done(item);
+    taker.join(5000);
+    assertFalse(taker.isAlive());
+    assertEquals("/a", taker.taken.source);
+    assertFalse(taker.taken.isWholeFile());
+  }
+
+  public void testWaitsForProducer() throws Exception {
+    TransferQueue queue = new TransferQueue();
+    queue.startProducer();
+    Taker taker = new Taker(queue);
+    taker.start();
+    taker.join(200);
+    assertTrue("take returned while the producer was running", taker.isAlive());
+
+    queue.add(file("/a", 1));
+    taker.join(5000);
+    assertEquals("/a", taker.taken.source);
+    queue.done(taker.taken);
+
+    taker = new Taker(queue);
+    taker.start();
+    taker.join(200);
+    assertTrue(taker.isAlive());
+    queue.producerDone();
+    taker.join(5000);
+    assertFalse(taker.isAlive());
+    assertNull(taker.taken);
+  }
+
+  public void testAbortWakesWaitingWorkers() throws Exception {
+    TransferQueue queue = new TransferQueue();
+    queue.startProducer();
+    queue.add(file("/a", 1));
+    queue.add(file("/b", 1));
+    queue.take();
+    Taker taker = new Taker(queue);
+    queue.abort();
+    taker.start();
+    taker.join(5000);
+    assertFalse(taker.isAlive());
+    assertNull(taker.taken);
+    assertEquals(0, queue.size());
+  }
+
+  public void testSpilledItemsComeBackInOrder() throws Exception {
+    TransferQueue queue = new TransferQueue(4, false);
+    for (int i=0; i<100; i++) {
+      queue.add(file("/dir/file" + i, i));
+    }
+    assertEquals(100, queue.size());
+    for (int i=0; i<100; i++) {
+      TransferItem item = queue.take();
+      assertEquals("/dir/file" + i, item.source);
+      assertEquals("/dest/dir/file" + i, item.destination);
+      assertEquals(i, item.attributes.getSize());
+      queue.done(item);
+    }
+    assertNull(queue.take());
+  }
+
+  public void testRangesAreNotSpilled() throws Exception {
+    TransferQueue queue = new TransferQueue(2, false);
+    queue.add(file("/a", 1));
+    queue.add(file("/b", 1));
+    queue.add(file("/c", 1));
+    TransferItem whole = file("/d", 2 * MB);
+    AtomicInteger left = new AtomicInteger(2);
+    TransferItem first = new TransferItem(whole, 0, MB, 2 * MB, left);
+    TransferItem second = new TransferItem(whole, MB, MB, 2 * MB, left);
+    queue.add(first);
+    queue.add(second);
+    assertEquals(5, queue.size());
+    assertEquals("/a", queue.take().source);
+    assertEquals("/b", queue.take().source);
+    // The ranges stay in memory, the spilled file comes back after them
+    assertSame(first, queue.take());
+    assertSame(second, queue.take());
+    assertEquals("/c", queue.take().source);
+  }
+
+  /**
+   * A worker waiting for the next item
+   */
+  private static class Taker extends Thread {
+    private TransferQueue queue;
+    volatile TransferItem taken;
+
+    Taker(TransferQueue queue) {
+      this.queue = queue;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        taken = queue.take();
+      } catch (Exception e) {
+        taken = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Johan Viklund, NBIS, https://www.nbis.se
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.nbis.sftpsquid;
+
+import junit.framework.TestCase;
+
+/**
+ * The window grows when it limits the throughput and shrinks when it doesn't
+ */
+public class WindowTunerTest extends TestCase {
+  private static final long MS = 1000 * 1000;
+  private static final int PACKET = 32 * 1024;
+
+  private WindowTuner tuner;
+
+  protected void setUp() {
+    tuner = new WindowTuner("test");
+  }
+
+  /**
+   * Report a second of copying at a fraction of what the window allows with
+   * a round trip of 10 ms
+   */
+  private void copied(int window, double fraction) {
+    long limit = (long) window * PACKET * 100;
+    tuner.sampleThroughput(window, (long) (fraction * limit), 1000 * MS, PACKET);
+  }
+
+  public void testStartsSmall() {
+    assertEquals(WindowTuner.MIN_WINDOW, tuner.window());
+    assertEquals(-1.0, tuner.rtt(), 0);
+  }
+
+  public void testSmoothedRtt() {
+    tuner.sampleRtt(10 * MS);
+    assertEquals(10 * MS, tuner.rtt(), 1);
+    tuner.sampleRtt(20 * MS);
+    assertEquals(12 * MS, tuner.rtt(), 1);
+  }
+
+  public void testNothingChangesWithoutRtt() {
+    copied(WindowTuner.MIN_WINDOW, 1.0);
+    assertEquals(WindowTuner.MIN_WINDOW, tuner.window());
+  }
+
+  public void testGrowsWhenTheWindowLimits() {
+    tuner.sampleRtt(10 * MS);
+    copied(16, 0.9);
+    assertEquals(32, tuner.window());
+    copied(32, 0.9);
+    assertEquals(64, tuner.window());
+  }
+
+  public void testNeverAboveMax() {
+    tuner.sampleRtt(10 * MS);
+    for (int i=0; i<20; i++) {
+      copied(tuner.window(), 1.0);
+    }
+    assertEquals(WindowTuner.MAX_WINDOW, tuner.window());
+  }
+
+  public void testShrinksWhenSomethingElseLimits() {
+    tuner.sampleRtt(10 * MS);
+    copied(256, 0.1);
+    assertEquals(192, tuner.window());
+    for (int i=0; i<20; i++) {
+      copied(tuner.window(), 0.1);
+    }
+    assertEquals(WindowTuner.MIN_WINDOW, tuner.window());
+  }
+
+  public void testKeptInBetween() {
+    tuner.sampleRtt(10 * MS);
+    copied(16, 0.9);
+    copied(32, 0.6);
+    assertEquals(32, tuner.window());
+  }
+
+  public void testEmptySegmentIsIgnored() {
+    tuner.sampleRtt(10 * MS);
+    tuner.sampleThroughput(16, 0, 1000 * MS, PACKET);
+    tuner.sampleThroughput(16, 1000, 0, PACKET);
+    assertEquals(WindowTuner.MIN_WINDOW, tuner.window());
+  }
+}